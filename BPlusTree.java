@@ -1,42 +1,190 @@
 // Searching on a B+ tree in Java
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.*;
-
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Nodes are laid out over primitive arrays: internal nodes keep their keys in an int[],
+ * and each leaf keeps its keys in an int[] next to a single value slab holding
+ * valueSize bytes per slot, so no per-entry objects or boxed keys are allocated.
+ */
 public class BPlusTree {
   int m;
+  int valueSize;
   InternalNode root;
   LeafNode firstLeaf;
+  // offset within each value of the int field summarised per subtree, or -1 for none
+  int aggregateOffset = -1;
+
+  // Adds value's field to the summaries of node and every node above it
+  private void addToPath(Node node, int field) {
+    for (; node != null; node = node.parent) {
+      node.count++;
+      node.sum += field;
+      node.min = Math.min(node.min, field);
+      node.max = Math.max(node.max, field);
+    }
+  }
 
-  // Binary search program
-  private int binarySearch(DictionaryPair[] dps, int numPairs, int t) {
-    Comparator<DictionaryPair> c = new Comparator<DictionaryPair>() {
-      @Override
-      public int compare(DictionaryPair o1, DictionaryPair o2) {
-        Integer a = Integer.valueOf(o1.key);
-        Integer b = Integer.valueOf(o2.key);
-        return a.compareTo(b);
+  // Adds the pairs of node's subtree with keys in [lowerBound, upperBound] to result
+  private void aggregate(Node node, int lowerBound, int upperBound, boolean lowCovered, boolean highCovered,
+      Aggregate result) {
+
+    if (node instanceof LeafNode) {
+      LeafNode ln = (LeafNode) node;
+      for (int i = KeySearch.lowerBound(ln.keys, ln.numPairs, lowerBound); i < ln.numPairs; i++) {
+        if (ln.keys[i] > upperBound) {
+          return;
+        }
+        result.add(fieldAt(ln.values, i));
       }
-    };
-    byte[] bytes = null;
-    return Arrays.binarySearch(dps, 0, numPairs, new DictionaryPair(t, bytes), c);
+      return;
+    }
+
+    // child i holds keys in [keys[i - 1], keys[i]], so only the two boundary children need a descent
+    InternalNode in = (InternalNode) node;
+    int first = KeySearch.lowerBound(in.keys, in.degree - 1, lowerBound);
+    int last = KeySearch.upperBound(in.keys, in.degree - 1, upperBound);
+    for (int i = first; i <= last; i++) {
+      boolean low = (i > 0) ? in.keys[i - 1] >= lowerBound : lowCovered;
+      boolean high = (i < in.degree - 1) ? in.keys[i] <= upperBound : highCovered;
+      if (low && high) {
+        result.add(in.childPointers[i]);
+      } else {
+        aggregate(in.childPointers[i], lowerBound, upperBound, low, high, result);
+      }
+    }
   }
 
-  // Find the leaf node
-  private LeafNode findLeafNode(int key) {
+  // Evens out the last two leaves of a bulk load so the tail leaf is not deficient
+  private void balanceLastLeaf(ArrayList<LeafNode> leaves) {
+
+    if (leaves.size() < 2) {
+      return;
+    }
+
+    LeafNode last = leaves.get(leaves.size() - 1);
+    LeafNode prev = leaves.get(leaves.size() - 2);
+    if (!last.isDeficient()) {
+      return;
+    }
 
-    Integer[] keys = this.root.keys;
-    int i;
+    int combined = prev.numPairs + last.numPairs;
+    if (combined <= prev.maxNumPairs) {
+      // Fold the tail into its left neighbour
+      System.arraycopy(last.keys, 0, prev.keys, prev.numPairs, last.numPairs);
+      System.arraycopy(last.values, 0, prev.values, prev.numPairs * this.valueSize,
+          last.numPairs * this.valueSize);
+      prev.numPairs = combined;
+      leaves.remove(leaves.size() - 1);
+    } else {
+      // Shift the upper part of prev in front of the tail so both hold about half
+      int move = prev.numPairs - (combined - combined / 2);
+      int from = prev.numPairs - move;
+      System.arraycopy(last.keys, 0, last.keys, move, last.numPairs);
+      System.arraycopy(last.values, 0, last.values, move * this.valueSize, last.numPairs * this.valueSize);
+      System.arraycopy(prev.keys, from, last.keys, 0, move);
+      System.arraycopy(prev.values, from * this.valueSize, last.values, 0, move * this.valueSize);
+      prev.numPairs -= move;
+      last.numPairs += move;
+    }
+  }
 
-    for (i = 0; i < this.root.degree - 1; i++) {
-      if (key < keys[i]) {
-        break;
+  // Binary search program
+  private int binarySearch(int[] keys, int numKeys, int t) {
+    return Arrays.binarySearch(keys, 0, numKeys, t);
+  }
+
+  // Pairs per bulk loaded leaf: fillFactor of the maximum, but never deficient
+  private int bulkLoadLeafCapacity(double fillFactor) {
+    int minNumPairs = (int) (Math.ceil(this.m / 2) - 1);
+    return Math.max(Math.max(1, minNumPairs), Math.min(this.m - 1, (int) (fillFactor * (this.m - 1))));
+  }
+
+  // Links a level of bulk loaded leaves and builds the internal levels above it
+  private void buildInternalLevels(ArrayList<LeafNode> leaves, double fillFactor) {
+
+    for (int i = 1; i < leaves.size(); i++) {
+      leaves.get(i - 1).rightSibling = leaves.get(i);
+      leaves.get(i).leftSibling = leaves.get(i - 1);
+    }
+    this.firstLeaf = leaves.get(0);
+
+    Node[] level = leaves.toArray(new Node[leaves.size()]);
+    int[] levelMinKeys = new int[level.length];
+    for (int i = 0; i < level.length; i++) {
+      levelMinKeys[i] = leaves.get(i).keys[0];
+    }
+
+    int minDegree = (int) Math.ceil(this.m / 2.0);
+    int fanout = Math.max(Math.max(2, minDegree), Math.min(this.m, (int) (fillFactor * this.m)));
+
+    while (level.length > 1) {
+
+      int[] sizes = groupSizes(level.length, fanout, minDegree, this.m);
+      Node[] parents = new Node[sizes.length];
+      int[] parentMinKeys = new int[sizes.length];
+      InternalNode prev = null;
+      int start = 0;
+
+      for (int g = 0; g < sizes.length; g++) {
+        InternalNode in = new InternalNode(this.m);
+        for (int j = 0; j < sizes[g]; j++) {
+          Node child = level[start + j];
+          if (j > 0) {
+            in.keys[j - 1] = levelMinKeys[start + j];
+          }
+          in.appendChildPointer(child);
+          child.parent = in;
+        }
+
+        if (prev != null) {
+          prev.rightSibling = in;
+          in.leftSibling = prev;
+        }
+        prev = in;
+
+        parents[g] = in;
+        parentMinKeys[g] = levelMinKeys[start];
+        start += sizes[g];
       }
+
+      level = parents;
+      levelMinKeys = parentMinKeys;
+    }
+
+    this.root = (level[0] instanceof InternalNode) ? (InternalNode) level[0] : null;
+    if (this.aggregateOffset >= 0) {
+      summarize(level[0]);
     }
+  }
+
+  private void checkBulkLoad(double fillFactor) {
+    if (!isEmpty()) {
+      throw new IllegalStateException("Bulk load requires an empty tree");
+    }
+    if (fillFactor <= 0 || fillFactor > 1) {
+      throw new IllegalArgumentException("Fill factor must be in (0, 1]: " + fillFactor);
+    }
+  }
+
+  // The aggregated int field of the pair at index within a leaf's value slab
+  private int fieldAt(byte[] values, int index) {
+    int offset = index * this.valueSize + this.aggregateOffset;
+    return (values[offset] << 24) | ((values[offset + 1] & 0xff) << 16) | ((values[offset + 2] & 0xff) << 8)
+        | (values[offset + 3] & 0xff);
+  }
+
+  // Find the leaf node
+  private LeafNode findLeafNode(int key) {
+
+    int i = KeySearch.upperBound(this.root.keys, this.root.degree - 1, key);
 
     Node child = this.root.childPointers[i];
     if (child instanceof LeafNode) {
@@ -46,17 +194,21 @@ public class BPlusTree {
     }
   }
 
+  // Find the leftmost leaf that can hold key, so a scan from it sees every duplicate of key
+  private LeafNode findLeafNodeLowerBound(int key) {
+
+    Node node = this.root;
+    while (node instanceof InternalNode) {
+      InternalNode in = (InternalNode) node;
+      node = in.childPointers[KeySearch.lowerBound(in.keys, in.degree - 1, key)];
+    }
+    return (LeafNode) node;
+  }
+
   // Find the leaf node
   private LeafNode findLeafNode(InternalNode node, int key) {
 
-    Integer[] keys = node.keys;
-    int i;
-
-    for (i = 0; i < node.degree - 1; i++) {
-      if (key < keys[i]) {
-        break;
-      }
-    }
+    int i = KeySearch.upperBound(node.keys, node.degree - 1, key);
     Node childNode = node.childPointers[i];
     if (childNode instanceof LeafNode) {
       return (LeafNode) childNode;
@@ -65,15 +217,12 @@ public class BPlusTree {
     }
   }
 
-  // Finding the index of the pointer
-  private int findIndexOfPointer(Node[] pointers, LeafNode node) {
-    int i;
-    for (i = 0; i < pointers.length; i++) {
-      if (pointers[i] == node) {
-        break;
-      }
+  // Leftmost leaf below node
+  private LeafNode firstLeafOf(Node node) {
+    while (node instanceof InternalNode) {
+      node = ((InternalNode) node).childPointers[0];
     }
-    return i;
+    return (LeafNode) node;
   }
 
   // Get the mid point
@@ -81,64 +230,134 @@ public class BPlusTree {
     return (int) Math.ceil((this.m + 1) / 2.0) - 1;
   }
 
-  // Balance the tree
-  private void handleDeficiency(InternalNode in) {
+  // Splits n children or keys into groups of perGroup, keeping the last group at or above min
+  static int[] groupSizes(int n, int perGroup, int min, int max) {
 
-    InternalNode sibling;
-    InternalNode parent = in.parent;
+    int groups = (n + perGroup - 1) / perGroup;
+    int[] sizes = new int[groups];
+    Arrays.fill(sizes, perGroup);
+    sizes[groups - 1] = n - (groups - 1) * perGroup;
+
+    if (groups > 1 && sizes[groups - 1] < min) {
+      int combined = sizes[groups - 2] + sizes[groups - 1];
+      if (combined <= max) {
+        sizes = Arrays.copyOf(sizes, groups - 1);
+        sizes[groups - 2] = combined;
+      } else {
+        sizes[groups - 2] = combined - combined / 2;
+        sizes[groups - 1] = combined / 2;
+      }
+    }
+
+    return sizes;
+  }
+
+  /*
+   * Rebalances an internal node that has fallen below its minimum degree. It takes a
+   * child from an adjacent sibling under the same parent when one can spare it, rotating
+   * the separator through the parent, and otherwise merges with that sibling. A root left
+   * with a single child is replaced by the child, which shortens the tree by one level.
+   */
+  private void handleDeficiency(InternalNode in) {
 
     if (this.root == in) {
-      for (int i = 0; i < in.childPointers.length; i++) {
-        if (in.childPointers[i] != null) {
-          if (in.childPointers[i] instanceof InternalNode) {
-            this.root = (InternalNode) in.childPointers[i];
-            this.root.parent = null;
-          } else if (in.childPointers[i] instanceof LeafNode) {
-            this.root = null;
-          }
+      if (in.degree == 1) {
+        Node child = in.childPointers[0];
+        child.parent = null;
+        if (child instanceof InternalNode) {
+          this.root = (InternalNode) child;
+        } else {
+          this.root = null;
+          this.firstLeaf = (LeafNode) child;
         }
       }
+      return;
     }
 
-    else if (in.leftSibling != null && in.leftSibling.isLendable()) {
-      sibling = in.leftSibling;
-    } else if (in.rightSibling != null && in.rightSibling.isLendable()) {
-      sibling = in.rightSibling;
+    InternalNode parent = in.parent;
+    int index = parent.findIndexOfPointer(in);
+    InternalNode left = (index > 0) ? (InternalNode) parent.childPointers[index - 1] : null;
+    InternalNode right = (index < parent.degree - 1) ? (InternalNode) parent.childPointers[index + 1] : null;
+
+    if (left != null && left.isLendable()) {
+
+      // The parent's separator comes down in front of in and left's last key goes up
+      Node pointer = left.childPointers[left.degree - 1];
+      int upKey = left.keys[left.degree - 2];
+      left.childPointers[left.degree - 1] = null;
+      left.degree--;
+
+      in.prependChildPointer(parent.keys[index - 1], pointer);
+      pointer.parent = in;
+      parent.keys[index - 1] = upKey;
+      recompute(left);
+      recompute(in);
+
+    } else if (right != null && right.isLendable()) {
+
+      // The parent's separator comes down behind in and right's first key goes up
+      Node pointer = right.childPointers[0];
+      int upKey = right.keys[0];
+      right.removeFirstChildPointer();
+
+      in.keys[in.degree - 1] = parent.keys[index];
+      in.appendChildPointer(pointer);
+      pointer.parent = in;
+      parent.keys[index] = upKey;
+      recompute(right);
+      recompute(in);
+
+    } else if (left != null) {
+      mergeInternalNodes(left, in, index);
+    } else {
+      mergeInternalNodes(in, right, index + 1);
+    }
 
-      int borrowedKey = sibling.keys[0];
-      Node pointer = sibling.childPointers[0];
+    if (parent.isDeficient()) {
+      handleDeficiency(parent);
+    }
+  }
 
-      in.keys[in.degree - 1] = parent.keys[0];
-      in.childPointers[in.degree] = pointer;
+  // Same as above for a leaf that has fallen below its minimum number of pairs
+  private void handleDeficiency(LeafNode ln) {
 
-      parent.keys[0] = borrowedKey;
+    InternalNode parent = ln.parent;
+    if (parent == null) {
+      // a lone leaf only goes away once it is empty
+      if (ln.numPairs == 0) {
+        this.firstLeaf = null;
+      }
+      return;
+    }
 
-      sibling.removePointer(0);
-      Arrays.sort(sibling.keys);
-      sibling.removePointer(0);
-      shiftDown(in.childPointers, 1);
-    } else if (in.leftSibling != null && in.leftSibling.isMergeable()) {
+    int index = parent.findIndexOfPointer(ln);
+    LeafNode left = (index > 0) ? (LeafNode) parent.childPointers[index - 1] : null;
+    LeafNode right = (index < parent.degree - 1) ? (LeafNode) parent.childPointers[index + 1] : null;
 
-    } else if (in.rightSibling != null && in.rightSibling.isMergeable()) {
-      sibling = in.rightSibling;
-      sibling.keys[sibling.degree - 1] = parent.keys[parent.degree - 2];
-      Arrays.sort(sibling.keys, 0, sibling.degree);
-      parent.keys[parent.degree - 2] = null;
+    if (left != null && left.isLendable()) {
 
-      for (int i = 0; i < in.childPointers.length; i++) {
-        if (in.childPointers[i] != null) {
-          sibling.prependChildPointer(in.childPointers[i]);
-          in.childPointers[i].parent = sibling;
-          in.removePointer(i);
-        }
-      }
+      int last = left.numPairs - 1;
+      ln.insertAt(0, left.keys[last], left.values, last * this.valueSize);
+      left.numPairs--;
+      parent.keys[index - 1] = ln.keys[0];
+      recompute(left);
+      recompute(ln);
+
+    } else if (right != null && right.isLendable()) {
 
-      parent.removePointer(in);
+      ln.insertAt(ln.numPairs, right.keys[0], right.values, 0);
+      right.delete(0);
+      parent.keys[index] = right.keys[0];
+      recompute(right);
+      recompute(ln);
 
-      sibling.leftSibling = in.leftSibling;
+    } else if (left != null) {
+      mergeLeafNodes(left, ln, index);
+    } else {
+      mergeLeafNodes(ln, right, index + 1);
     }
 
-    if (parent != null && parent.isDeficient()) {
+    if (parent.isDeficient()) {
       handleDeficiency(parent);
     }
   }
@@ -147,75 +366,79 @@ public class BPlusTree {
     return firstLeaf == null;
   }
 
-  private int linearNullSearch(DictionaryPair[] dps) {
-    for (int i = 0; i < dps.length; i++) {
-      if (dps[i] == null) {
-        return i;
-      }
-    }
-    return -1;
-  }
+  // Folds right, the child at rightIndex of their parent, into left and drops the separator
+  private void mergeInternalNodes(InternalNode left, InternalNode right, int rightIndex) {
 
-  private int linearNullSearch(Node[] pointers) {
-    for (int i = 0; i < pointers.length; i++) {
-      if (pointers[i] == null) {
-        return i;
-      }
+    InternalNode parent = left.parent;
+    left.keys[left.degree - 1] = parent.keys[rightIndex - 1];
+    System.arraycopy(right.keys, 0, left.keys, left.degree, right.degree - 1);
+    for (int i = 0; i < right.degree; i++) {
+      left.appendChildPointer(right.childPointers[i]);
+      right.childPointers[i].parent = left;
     }
-    return -1;
-  }
 
-  private void shiftDown(Node[] pointers, int amount) {
-    Node[] newPointers = new Node[this.m + 1];
-    for (int i = amount; i < pointers.length; i++) {
-      newPointers[i - amount] = pointers[i];
+    left.rightSibling = right.rightSibling;
+    if (left.rightSibling != null) {
+      left.rightSibling.leftSibling = left;
     }
-    pointers = newPointers;
+    parent.removeChildPointer(rightIndex);
+    recompute(left);
   }
 
-  private void sortDictionary(DictionaryPair[] dictionary) {
-    Arrays.sort(dictionary, new Comparator<DictionaryPair>() {
-      @Override
-      public int compare(DictionaryPair o1, DictionaryPair o2) {
-        if (o1 == null && o2 == null) {
-          return 0;
-        }
-        if (o1 == null) {
-          return 1;
-        }
-        if (o2 == null) {
-          return -1;
-        }
-        return o1.compareTo(o2);
-      }
-    });
-  }
-
-  private Node[] splitChildPointers(InternalNode in, int split) {
+  // Folds leaf right, the child at rightIndex of their parent, into left and unlinks it
+  private void mergeLeafNodes(LeafNode left, LeafNode right, int rightIndex) {
 
-    Node[] pointers = in.childPointers;
-    Node[] halfPointers = new Node[this.m + 1];
+    System.arraycopy(right.keys, 0, left.keys, left.numPairs, right.numPairs);
+    System.arraycopy(right.values, 0, left.values, left.numPairs * this.valueSize,
+        right.numPairs * this.valueSize);
+    left.numPairs += right.numPairs;
 
-    for (int i = split + 1; i < pointers.length; i++) {
-      halfPointers[i - split - 1] = pointers[i];
-      in.removePointer(i);
+    left.rightSibling = right.rightSibling;
+    if (left.rightSibling != null) {
+      left.rightSibling.leftSibling = left;
     }
-
-    return halfPointers;
+    left.parent.removeChildPointer(rightIndex);
+    recompute(left);
   }
 
-  private DictionaryPair[] splitDictionary(LeafNode ln, int split) {
-
-    DictionaryPair[] dictionary = ln.dictionary;
+  // Rebuilds node's summary from its own pairs or from its children's summaries
+  private void recompute(Node node) {
 
-    DictionaryPair[] halfDict = new DictionaryPair[this.m];
+    if (this.aggregateOffset < 0) {
+      return;
+    }
 
-    for (int i = split; i < dictionary.length; i++) {
-      halfDict[i - split] = dictionary[i];
-      ln.delete(i);
+    node.clearSummary();
+    if (node instanceof LeafNode) {
+      LeafNode ln = (LeafNode) node;
+      for (int i = 0; i < ln.numPairs; i++) {
+        int field = fieldAt(ln.values, i);
+        ln.count++;
+        ln.sum += field;
+        ln.min = Math.min(ln.min, field);
+        ln.max = Math.max(ln.max, field);
+      }
+    } else {
+      InternalNode in = (InternalNode) node;
+      for (int i = 0; i < in.degree; i++) {
+        Node child = in.childPointers[i];
+        in.count += child.count;
+        in.sum += child.sum;
+        in.min = Math.min(in.min, child.min);
+        in.max = Math.max(in.max, child.max);
+      }
     }
+  }
 
-    return halfDict;
+  // Recomputes the summaries of node's whole subtree, children first
+  private void summarize(Node node) {
+    if (node instanceof InternalNode) {
+      InternalNode in = (InternalNode) node;
+      for (int i = 0; i < in.degree; i++) {
+        summarize(in.childPointers[i]);
+      }
+    }
+    recompute(node);
   }
 
   private void splitInternalNode(InternalNode in) {
@@ -224,17 +447,16 @@ public class BPlusTree {
 
     int midpoint = getMidpoint();
     int newParentKey = in.keys[midpoint];
-    Integer[] halfKeys = splitKeys(in.keys, midpoint);
-    Node[] halfPointers = splitChildPointers(in, midpoint);
-
-    in.degree = linearNullSearch(in.childPointers);
 
-    InternalNode sibling = new InternalNode(this.m, halfKeys, halfPointers);
-    for (Node pointer : halfPointers) {
-      if (pointer != null) {
-        pointer.parent = sibling;
-      }
+    // Keys after the midpoint and the children to their right move to the sibling
+    InternalNode sibling = new InternalNode(this.m);
+    System.arraycopy(in.keys, midpoint + 1, sibling.keys, 0, in.degree - midpoint - 2);
+    for (int i = midpoint + 1; i < in.degree; i++) {
+      sibling.appendChildPointer(in.childPointers[i]);
+      in.childPointers[i].parent = sibling;
+      in.childPointers[i] = null;
     }
+    in.degree = midpoint + 1;
 
     sibling.rightSibling = in.rightSibling;
     if (sibling.rightSibling != null) {
@@ -242,81 +464,249 @@ public class BPlusTree {
     }
     in.rightSibling = sibling;
     sibling.leftSibling = in;
+    recompute(in);
+    recompute(sibling);
 
     if (parent == null) {
 
-      Integer[] keys = new Integer[this.m];
-      keys[0] = newParentKey;
-      InternalNode newRoot = new InternalNode(this.m, keys);
+      InternalNode newRoot = new InternalNode(this.m);
+      newRoot.keys[0] = newParentKey;
       newRoot.appendChildPointer(in);
       newRoot.appendChildPointer(sibling);
       this.root = newRoot;
 
       in.parent = newRoot;
       sibling.parent = newRoot;
+      recompute(newRoot);
 
     } else {
 
-      parent.keys[parent.degree - 1] = newParentKey;
-      Arrays.sort(parent.keys, 0, parent.degree);
-
       int pointerIndex = parent.findIndexOfPointer(in) + 1;
-      parent.insertChildPointer(sibling, pointerIndex);
+      parent.insertChildPointer(newParentKey, sibling, pointerIndex);
       sibling.parent = parent;
     }
   }
 
-  private Integer[] splitKeys(Integer[] keys, int split) {
+  /*
+   * Deletes the pair at index from ln and takes its field out of the summaries above.
+   * Count and sum are adjusted in place; a node whose min or max was that field is
+   * rebuilt from its children, which are already up to date.
+   */
+  private void removeFromPath(LeafNode ln, int index) {
+
+    int field = fieldAt(ln.values, index);
+    ln.delete(index);
+    recompute(ln);
+
+    for (InternalNode in = ln.parent; in != null; in = in.parent) {
+      if (field == in.min || field == in.max) {
+        recompute(in);
+      } else {
+        in.count--;
+        in.sum -= field;
+      }
+    }
+  }
+
+  // Moves the pairs from split onwards into a new right-hand leaf
+  private LeafNode splitLeafNode(LeafNode ln, int split) {
+
+    LeafNode sibling = new LeafNode(this.m, this.valueSize);
+    int count = ln.numPairs - split;
+
+    System.arraycopy(ln.keys, split, sibling.keys, 0, count);
+    System.arraycopy(ln.values, split * this.valueSize, sibling.values, 0, count * this.valueSize);
+    sibling.numPairs = count;
+    ln.numPairs = split;
+
+    return sibling;
+  }
+
+  /*
+   * Builds the tree bottom-up from the records of a heap file. Keys are record ids
+   * assigned in load order starting at 1, so leaves can be packed left to right to
+   * fillFactor of their capacity without any descents, sorts or splits.
+   * Returns the number of records loaded.
+   */
+  public int bulkLoad(String datafile, int pageSize, double fillFactor) throws IOException {
+
+    HeapFile heap = new HeapFile(datafile, pageSize);
+    try {
+      return bulkLoad(heap, fillFactor);
+    } finally {
+      heap.close();
+    }
+  }
+
+  /*
+   * Same as above, reading the pages from a buffered or memory-mapped heap file. A tree
+   * whose value size is constants.TOTAL_SIZE stores a copy of each record; a tree whose
+   * value size is constants.LOCATOR_SIZE stores a RecordLocator for it instead.
+   */
+  public int bulkLoad(PageSource heap, double fillFactor) throws IOException {
+
+    checkBulkLoad(fillFactor);
+    boolean locators = this.valueSize == constants.LOCATOR_SIZE;
+    if (!locators && this.valueSize != constants.TOTAL_SIZE) {
+      throw new IllegalStateException("Bulk load stores whole records or locators, value size must be "
+          + constants.TOTAL_SIZE + " or " + constants.LOCATOR_SIZE);
+    }
+
+    int leafCapacity = bulkLoadLeafCapacity(fillFactor);
+    int numRecordsPerPage = heap.numRecordsPerPage();
+    int numPages = heap.numPages();
+    ArrayList<LeafNode> leaves = new ArrayList<LeafNode>();
+    LeafNode leaf = new LeafNode(this.m, this.valueSize);
+    int recordId = 0;
 
-    Integer[] halfKeys = new Integer[this.m];
+    for (int pageId = 0; pageId < numPages; pageId++) {
+      ByteBuffer page = heap.fetchPage(pageId);
 
-    keys[split] = null;
+      for (int i = 0; i < numRecordsPerPage; i++) {
+        // an empty SdtName marks the end of the records in a packed page
+        if (page.get(i * constants.TOTAL_SIZE) == 0) {
+          break;
+        }
 
-    for (int i = split + 1; i < keys.length; i++) {
-      halfKeys[i - split - 1] = keys[i];
-      keys[i] = null;
+        // the record, or its locator, goes straight into the leaf's value slab
+        recordId++;
+        leaf.keys[leaf.numPairs] = recordId;
+        if (locators) {
+          RecordLocator.encode(pageId, i, leaf.values, leaf.numPairs * this.valueSize);
+        } else {
+          page.get(i * constants.TOTAL_SIZE, leaf.values, leaf.numPairs * this.valueSize, this.valueSize);
+        }
+        leaf.numPairs++;
+
+        if (leaf.numPairs == leafCapacity) {
+          leaves.add(leaf);
+          leaf = new LeafNode(this.m, this.valueSize);
+        }
+      }
+      heap.unpinPage(pageId);
     }
 
-    return halfKeys;
+    if (leaf.numPairs > 0) {
+      leaves.add(leaf);
+    }
+    if (leaves.isEmpty()) {
+      return 0;
+    }
+
+    balanceLastLeaf(leaves);
+    buildInternalLevels(leaves, fillFactor);
+    return recordId;
+  }
+
+  /*
+   * Builds a secondary index over the int field at fieldOffset of every record in the
+   * heap file. The tree must have been created with constants.LOCATOR_SIZE values; each
+   * entry maps a field value to the RecordLocator of its record, and duplicate values
+   * are kept in heap order. The (value, record) pairs are sorted once and the tree is
+   * then built bottom-up like bulkLoad. Returns the number of records indexed.
+   */
+  public int bulkLoadField(PageSource heap, int fieldOffset, double fillFactor) throws IOException {
+
+    checkBulkLoad(fillFactor);
+    if (this.valueSize != constants.LOCATOR_SIZE) {
+      throw new IllegalStateException("Field indexes store locators, value size must be " + constants.LOCATOR_SIZE);
+    }
+
+    // Pack each field value with the record's position in the heap so one sort orders both
+    int numRecordsPerPage = heap.numRecordsPerPage();
+    int numPages = heap.numPages();
+    long[] entries = new long[16];
+    int numEntries = 0;
+
+    for (int pageId = 0; pageId < numPages; pageId++) {
+      ByteBuffer page = heap.fetchPage(pageId);
+      for (int i = 0; i < numRecordsPerPage; i++) {
+        if (page.get(i * constants.TOTAL_SIZE) == 0) {
+          break;
+        }
+        if (numEntries == entries.length) {
+          entries = Arrays.copyOf(entries, numEntries * 2);
+        }
+        long key = page.getInt(i * constants.TOTAL_SIZE + fieldOffset);
+        entries[numEntries++] = (key << 32) | ((long) pageId * numRecordsPerPage + i);
+      }
+      heap.unpinPage(pageId);
+    }
+    Arrays.sort(entries, 0, numEntries);
+
+    int leafCapacity = bulkLoadLeafCapacity(fillFactor);
+    ArrayList<LeafNode> leaves = new ArrayList<LeafNode>();
+    LeafNode leaf = new LeafNode(this.m, this.valueSize);
+
+    for (int e = 0; e < numEntries; e++) {
+      int position = (int) entries[e];
+      leaf.keys[leaf.numPairs] = (int) (entries[e] >> 32);
+      RecordLocator.encode(position / numRecordsPerPage, position % numRecordsPerPage, leaf.values,
+          leaf.numPairs * this.valueSize);
+      leaf.numPairs++;
+
+      if (leaf.numPairs == leafCapacity) {
+        leaves.add(leaf);
+        leaf = new LeafNode(this.m, this.valueSize);
+      }
+    }
+
+    if (leaf.numPairs > 0) {
+      leaves.add(leaf);
+    }
+    if (leaves.isEmpty()) {
+      return 0;
+    }
+
+    balanceLastLeaf(leaves);
+    buildInternalLevels(leaves, fillFactor);
+    return numEntries;
   }
 
   public void insert(int key, byte[] value) {
+    if (value.length != this.valueSize) {
+      throw new IllegalArgumentException("Value must be " + this.valueSize + " bytes, got " + value.length);
+    }
+
     if (isEmpty()) {
 
-      LeafNode ln = new LeafNode(this.m, new DictionaryPair(key, value));
+      LeafNode ln = new LeafNode(this.m, this.valueSize);
+      ln.insert(key, value);
+      recompute(ln);
 
       this.firstLeaf = ln;
 
     } else {
       LeafNode ln = (this.root == null) ? this.firstLeaf : findLeafNode(key);
 
-      if (!ln.insert(new DictionaryPair(key, value))) {
+      if (ln.insert(key, value)) {
+        if (this.aggregateOffset >= 0) {
+          addToPath(ln, fieldAt(value, 0));
+        }
+      } else {
 
-        ln.dictionary[ln.numPairs] = new DictionaryPair(key, value);
-        ln.numPairs++;
-        sortDictionary(ln.dictionary);
+        // The leaf has one spare slot, so take the new pair and then split in two
+        ln.insertAt(ln.insertionPoint(key), key, value);
 
         int midpoint = getMidpoint();
-        DictionaryPair[] halfDict = splitDictionary(ln, midpoint);
+        LeafNode newLeafNode = splitLeafNode(ln, midpoint);
+        int newParentKey = newLeafNode.keys[0];
+        recompute(ln);
+        recompute(newLeafNode);
 
         if (ln.parent == null) {
 
-          Integer[] parent_keys = new Integer[this.m];
-          parent_keys[0] = halfDict[0].key;
-          InternalNode parent = new InternalNode(this.m, parent_keys);
-          ln.parent = parent;
+          InternalNode parent = new InternalNode(this.m);
+          parent.keys[0] = newParentKey;
           parent.appendChildPointer(ln);
+          parent.appendChildPointer(newLeafNode);
+          ln.parent = parent;
 
         } else {
-          int newParentKey = halfDict[0].key;
-          ln.parent.keys[ln.parent.degree - 1] = newParentKey;
-          Arrays.sort(ln.parent.keys, 0, ln.parent.degree);
+          int pointerIndex = ln.parent.findIndexOfPointer(ln) + 1;
+          ln.parent.insertChildPointer(newParentKey, newLeafNode, pointerIndex);
         }
-
-        LeafNode newLeafNode = new LeafNode(this.m, halfDict, ln.parent);
-
-        int pointerIndex = ln.parent.findIndexOfPointer(ln) + 1;
-        ln.parent.insertChildPointer(newLeafNode, pointerIndex);
+        newLeafNode.parent = ln.parent;
 
         newLeafNode.rightSibling = ln.rightSibling;
         if (newLeafNode.rightSibling != null) {
@@ -328,6 +718,7 @@ public class BPlusTree {
         if (this.root == null) {
 
           this.root = ln.parent;
+          recompute(this.root);
 
         } else {
           InternalNode in = ln.parent;
@@ -339,11 +730,50 @@ public class BPlusTree {
             }
             in = in.parent;
           }
+
+          // split nodes were rebuilt from their children; the ones above only gained the new pair
+          if (in != null && this.aggregateOffset >= 0) {
+            addToPath(in, fieldAt(value, 0));
+          }
         }
       }
     }
   }
 
+  /*
+   * Removes one pair with the given key; returns false if the key is not in the tree.
+   * Underfull nodes borrow from or merge with a sibling, so leaves stay at least half
+   * full and the tree loses levels again as it empties.
+   */
+  public boolean delete(int key) {
+
+    if (isEmpty()) {
+      return false;
+    }
+
+    LeafNode ln = (this.root == null) ? this.firstLeaf : findLeafNodeLowerBound(key);
+    int index = KeySearch.lowerBound(ln.keys, ln.numPairs, key);
+    if (index == ln.numPairs && ln.rightSibling != null) {
+      // every key in ln is smaller, so the first candidate starts the next leaf
+      ln = ln.rightSibling;
+      index = 0;
+    }
+
+    if (index == ln.numPairs || ln.keys[index] != key) {
+      return false;
+    }
+
+    if (this.aggregateOffset >= 0) {
+      removeFromPath(ln, index);
+    } else {
+      ln.delete(index);
+    }
+    if (ln.isDeficient()) {
+      handleDeficiency(ln);
+    }
+    return true;
+  }
+
   public byte[] search(int key, boolean printable) {
 
     if (isEmpty()) {
@@ -352,8 +782,7 @@ public class BPlusTree {
 
     LeafNode ln = (this.root == null) ? this.firstLeaf : findLeafNode(key);
 
-    DictionaryPair[] dps = ln.dictionary;
-    int index = binarySearch(dps, ln.numPairs, key);
+    int index = binarySearch(ln.keys, ln.numPairs, key);
 
     if (index < 0) {
       if(printable)
@@ -362,46 +791,222 @@ public class BPlusTree {
     } else {
       if(printable)
       System.out.print("Record " + key + " Found : ");
-      parseBytes(dps[index].value, printable);
-      return dps[index].value;
+      parseBytes(ln.values, index * this.valueSize, printable);
+      return ln.getValue(index);
     }
   }
 
-  public ArrayList<byte[]> search(int lowerBound, int upperBound, boolean printable) {
+  // Copies the value for key into buffer without allocating; returns false if key is absent
+  public boolean search(int key, byte[] buffer) {
 
-    ArrayList<byte[]> values = new ArrayList<byte[]>();
+    if (isEmpty()) {
+      return false;
+    }
 
-    LeafNode currNode = this.firstLeaf;
-    while (currNode != null) {
+    LeafNode ln = (this.root == null) ? this.firstLeaf : findLeafNode(key);
 
-      DictionaryPair dps[] = currNode.dictionary;
-      for (DictionaryPair dp : dps) {
+    int index = binarySearch(ln.keys, ln.numPairs, key);
+    if (index < 0) {
+      return false;
+    }
 
-        if (dp == null) {
-          break;
-        }
+    System.arraycopy(ln.values, index * this.valueSize, buffer, 0, this.valueSize);
+    return true;
+  }
 
-        if (lowerBound <= dp.key && dp.key <= upperBound) {
-            if(printable)
-            System.out.print("Record " + dp.key + " Found " + " : ");
-            parseBytes(dp.value, printable);
-            values.add(dp.value);
-        }
+  /*
+   * Looks up many keys at once and returns their values in the order of keys, with null
+   * for a key that is absent. The probes are sorted and visited left to right, and each
+   * descent restarts from the lowest node on the previous path whose key range still
+   * covers the probe, so nearby probes share most of their path and often the same leaf.
+   */
+  public byte[][] searchBatch(int[] keys) {
+
+    byte[][] results = new byte[keys.length][];
+    if (isEmpty() || keys.length == 0) {
+      return results;
+    }
+
+    // Sort the probes, keeping each one's position in keys in the low half
+    long[] probes = new long[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      probes[i] = ((long) keys[i] << 32) | i;
+    }
+    Arrays.sort(probes);
+
+    // path[d] is the node at depth d of the current path and fences[d] the bound its keys stay below
+    int height = 0;
+    for (Node n = this.root; n instanceof InternalNode; n = ((InternalNode) n).childPointers[0]) {
+      height++;
+    }
+    Node[] path = new Node[height + 1];
+    long[] fences = new long[height + 1];
+    path[0] = (this.root == null) ? this.firstLeaf : this.root;
+    fences[0] = Long.MAX_VALUE;
+    int depth = 0;
+
+    for (long probe : probes) {
+      int key = (int) (probe >> 32);
+
+      // climb to the lowest node still covering key, then descend from there
+      while (key >= fences[depth]) {
+        depth--;
       }
-      currNode = currNode.rightSibling;
+      while (path[depth] instanceof InternalNode) {
+        InternalNode in = (InternalNode) path[depth];
+        int i = KeySearch.upperBound(in.keys, in.degree - 1, key);
+        path[depth + 1] = in.childPointers[i];
+        fences[depth + 1] = (i < in.degree - 1) ? in.keys[i] : fences[depth];
+        depth++;
+      }
+
+      LeafNode ln = (LeafNode) path[depth];
+      int index = binarySearch(ln.keys, ln.numPairs, key);
+      if (index >= 0) {
+        results[(int) probe] = ln.getValue(index);
+      }
+    }
+
+    return results;
+  }
+
+  public ArrayList<byte[]> search(int lowerBound, int upperBound, boolean printable) {
+
+    ArrayList<byte[]> values = new ArrayList<byte[]>();
+    RangeCursor cursor = cursor(lowerBound, upperBound);
 
+    while (cursor.advance()) {
+      if(printable)
+      System.out.print("Record " + cursor.key() + " Found " + " : ");
+      parseBytes(cursor.currLeaf.values, cursor.currIndex * this.valueSize, printable);
+      values.add(cursor.currLeaf.getValue(cursor.currIndex));
     }
 
     return values;
   }
 
+  // Lazily walks the pairs with keys in [lowerBound, upperBound] in key order
+  public RangeCursor cursor(int lowerBound, int upperBound) {
+    return new RangeCursor(lowerBound, upperBound);
+  }
+
+  // Splits a range scan over subtrees, see RangeSpliterator
+  public Spliterator<byte[]> spliterator(int lowerBound, int upperBound) {
+    return new RangeSpliterator(lowerBound, upperBound);
+  }
+
+  // The values with keys in [lowerBound, upperBound], optionally split across the common fork-join pool
+  public Stream<byte[]> stream(int lowerBound, int upperBound, boolean parallel) {
+    return StreamSupport.stream(spliterator(lowerBound, upperBound), parallel);
+  }
+
+  /*
+   * Keeps a count, sum, min and max of the int field at fieldOffset of the values in
+   * every subtree, e.g. constants.COUNTS_OFFSET in a tree of whole records. Existing
+   * entries are summarised at once; inserts, deletes, splits, merges and bulk loads keep
+   * the summaries current from then on.
+   */
+  public void trackAggregate(int fieldOffset) {
+    if (fieldOffset < 0 || fieldOffset + Integer.BYTES > this.valueSize) {
+      throw new IllegalArgumentException("Field at offset " + fieldOffset + " does not fit in a value of "
+          + this.valueSize + " bytes");
+    }
+    this.aggregateOffset = fieldOffset;
+    if (!isEmpty()) {
+      summarize((this.root == null) ? this.firstLeaf : this.root);
+    }
+  }
+
+  /*
+   * Count, sum, min and max of the tracked field over the pairs with keys in
+   * [lowerBound, upperBound]. Subtrees lying wholly inside the range answer from their
+   * summaries, so only the leaves at the two ends of the range are read.
+   */
+  public Aggregate rangeAggregate(int lowerBound, int upperBound) {
+
+    if (this.aggregateOffset < 0) {
+      throw new IllegalStateException("Tree does not track an aggregate, see trackAggregate");
+    }
+
+    Aggregate result = new Aggregate();
+    if (!isEmpty() && lowerBound <= upperBound) {
+      aggregate((this.root == null) ? this.firstLeaf : this.root, lowerBound, upperBound, false, false, result);
+    }
+    return result;
+  }
+
+  // Secondary index lookup: reads the records whose locators are stored under key
+  public ArrayList<byte[]> searchRecords(int key, PageSource heap) throws IOException {
+    return searchRecords(key, key, heap);
+  }
+
+  // Secondary index lookup: reads the records whose locators are stored under [lowerBound, upperBound]
+  public ArrayList<byte[]> searchRecords(int lowerBound, int upperBound, PageSource heap) throws IOException {
+
+    if (this.valueSize != constants.LOCATOR_SIZE) {
+      throw new IllegalStateException("Tree does not store record locators");
+    }
+
+    ArrayList<byte[]> records = new ArrayList<byte[]>();
+    RangeCursor cursor = cursor(lowerBound, upperBound);
+    while (cursor.advance()) {
+      byte[] record = new byte[constants.TOTAL_SIZE];
+      RecordLocator.fetch(heap, cursor.currLeaf.values, cursor.currIndex * this.valueSize, record);
+      records.add(record);
+    }
+    return records;
+  }
+
   public BPlusTree(int m) {
+    this(m, constants.TOTAL_SIZE);
+  }
+
+  public BPlusTree(int m, int valueSize) {
     this.m = m;
+    this.valueSize = valueSize;
     this.root = null;
   }
 
   public class Node {
     InternalNode parent;
+    // summary of the tracked field over this subtree, see trackAggregate
+    long count;
+    long sum;
+    int min = Integer.MAX_VALUE;
+    int max = Integer.MIN_VALUE;
+
+    void clearSummary() {
+      this.count = 0;
+      this.sum = 0;
+      this.min = Integer.MAX_VALUE;
+      this.max = Integer.MIN_VALUE;
+    }
+  }
+
+  // Count, sum, min and max of a field over a set of pairs; min and max are only meaningful if count > 0
+  public static class Aggregate {
+    public long count;
+    public long sum;
+    public int min = Integer.MAX_VALUE;
+    public int max = Integer.MIN_VALUE;
+
+    private void add(int field) {
+      this.count++;
+      this.sum += field;
+      this.min = Math.min(this.min, field);
+      this.max = Math.max(this.max, field);
+    }
+
+    private void add(Node node) {
+      this.count += node.count;
+      this.sum += node.sum;
+      this.min = Math.min(this.min, node.min);
+      this.max = Math.max(this.max, node.max);
+    }
+
+    public String toString() {
+      return "count " + this.count + ", sum " + this.sum + ", min " + this.min + ", max " + this.max;
+    }
   }
 
   private class InternalNode extends Node {
@@ -410,7 +1015,7 @@ public class BPlusTree {
     int degree;
     InternalNode leftSibling;
     InternalNode rightSibling;
-    Integer[] keys;
+    int[] keys;
     Node[] childPointers;
 
     private void appendChildPointer(Node pointer) {
@@ -419,7 +1024,7 @@ public class BPlusTree {
     }
 
     private int findIndexOfPointer(Node pointer) {
-      for (int i = 0; i < childPointers.length; i++) {
+      for (int i = 0; i < degree; i++) {
         if (childPointers[i] == pointer) {
           return i;
         }
@@ -427,10 +1032,11 @@ public class BPlusTree {
       return -1;
     }
 
-    private void insertChildPointer(Node pointer, int index) {
-      for (int i = degree - 1; i >= index; i--) {
-        childPointers[i + 1] = childPointers[i];
-      }
+    // Inserts pointer at index with key as the separator to its left
+    private void insertChildPointer(int key, Node pointer, int index) {
+      System.arraycopy(keys, index - 1, keys, index, degree - index);
+      System.arraycopy(childPointers, index, childPointers, index + 1, degree - index);
+      this.keys[index - 1] = key;
       this.childPointers[index] = pointer;
       this.degree++;
     }
@@ -443,55 +1049,42 @@ public class BPlusTree {
       return this.degree > this.minDegree;
     }
 
-    private boolean isMergeable() {
-      return this.degree == this.minDegree;
-    }
-
     private boolean isOverfull() {
       return this.degree == maxDegree + 1;
     }
 
-    private void prependChildPointer(Node pointer) {
-      for (int i = degree - 1; i >= 0; i--) {
-        childPointers[i + 1] = childPointers[i];
-      }
+    // Inserts pointer in front of the first child with key as the separator to its right
+    private void prependChildPointer(int key, Node pointer) {
+      System.arraycopy(keys, 0, keys, 1, degree - 1);
+      System.arraycopy(childPointers, 0, childPointers, 1, degree);
+      this.keys[0] = key;
       this.childPointers[0] = pointer;
       this.degree++;
     }
 
-    private void removeKey(int index) {
-      this.keys[index] = null;
-    }
-
-    private void removePointer(int index) {
-      this.childPointers[index] = null;
+    // Removes the first child together with the separator to its right
+    private void removeFirstChildPointer() {
+      System.arraycopy(keys, 1, keys, 0, degree - 2);
+      System.arraycopy(childPointers, 1, childPointers, 0, degree - 1);
       this.degree--;
+      this.childPointers[degree] = null;
     }
 
-    private void removePointer(Node pointer) {
-      for (int i = 0; i < childPointers.length; i++) {
-        if (childPointers[i] == pointer) {
-          this.childPointers[i] = null;
-        }
-      }
+    // Removes the pointer at index together with the separator to its left
+    private void removeChildPointer(int index) {
+      System.arraycopy(keys, index, keys, index - 1, degree - 1 - index);
+      System.arraycopy(childPointers, index + 1, childPointers, index, degree - 1 - index);
       this.degree--;
+      this.childPointers[degree] = null;
     }
 
-    private InternalNode(int m, Integer[] keys) {
+    private InternalNode(int m) {
       this.maxDegree = m;
       this.minDegree = (int) Math.ceil(m / 2.0);
       this.degree = 0;
-      this.keys = keys;
+      this.keys = new int[this.maxDegree];
       this.childPointers = new Node[this.maxDegree + 1];
     }
-
-    private InternalNode(int m, Integer[] keys, Node[] pointers) {
-      this.maxDegree = m;
-      this.minDegree = (int) Math.ceil(m / 2.0);
-      this.degree = linearNullSearch(pointers);
-      this.keys = keys;
-      this.childPointers = pointers;
-    }
   }
 
   public class LeafNode extends Node {
@@ -500,25 +1093,59 @@ public class BPlusTree {
     int numPairs;
     LeafNode leftSibling;
     LeafNode rightSibling;
-    DictionaryPair[] dictionary;
+    int[] keys;
+    byte[] values;
 
     public void delete(int index) {
-      this.dictionary[index] = null;
+      System.arraycopy(keys, index + 1, keys, index, numPairs - index - 1);
+      System.arraycopy(values, (index + 1) * valueSize, values, index * valueSize,
+          (numPairs - index - 1) * valueSize);
       numPairs--;
     }
 
-    public boolean insert(DictionaryPair dp) {
+    public byte[] getValue(int index) {
+      return Arrays.copyOfRange(values, index * valueSize, (index + 1) * valueSize);
+    }
+
+    public boolean insert(int key, byte[] value) {
       if (this.isFull()) {
         return false;
       } else {
-        this.dictionary[numPairs] = dp;
-        numPairs++;
-        Arrays.sort(this.dictionary, 0, numPairs);
-
+        insertAt(insertionPoint(key), key, value);
         return true;
       }
     }
 
+    // Shifts the pairs from index onwards right by one slot and writes the new pair
+    private void insertAt(int index, int key, byte[] value) {
+      insertAt(index, key, value, 0);
+    }
+
+    // Same as above, taking the value from offset within value
+    private void insertAt(int index, int key, byte[] value, int offset) {
+      System.arraycopy(keys, index, keys, index + 1, numPairs - index);
+      System.arraycopy(values, index * valueSize, values, (index + 1) * valueSize,
+          (numPairs - index) * valueSize);
+      keys[index] = key;
+      System.arraycopy(value, offset, values, index * valueSize, valueSize);
+      numPairs++;
+    }
+
+    // First slot holding a key greater than key, so duplicates keep their insertion order
+    private int insertionPoint(int key) {
+      int low = 0;
+      int high = numPairs;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (keys[mid] <= key) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
     public boolean isDeficient() {
       return numPairs < minNumPairs;
     }
@@ -535,44 +1162,230 @@ public class BPlusTree {
       return numPairs == minNumPairs;
     }
 
-    public LeafNode(int m, DictionaryPair dp) {
+    public LeafNode(int m, int valueSize) {
       this.maxNumPairs = m - 1;
-      this.minNumPairs = (int) (Math.ceil(m / 2) - 1);
-      this.dictionary = new DictionaryPair[m];
+      // at least one pair, so that delete never leaves an empty leaf in the tree
+      this.minNumPairs = Math.max(1, (int) (Math.ceil(m / 2) - 1));
+      this.keys = new int[m];
+      this.values = new byte[m * valueSize];
       this.numPairs = 0;
-      this.insert(dp);
     }
+  }
 
-    public LeafNode(int m, DictionaryPair[] dps, InternalNode parent) {
-      this.maxNumPairs = m - 1;
-      this.minNumPairs = (int) (Math.ceil(m / 2) - 1);
-      this.dictionary = dps;
-      this.numPairs = linearNullSearch(dps);
-      this.parent = parent;
+  /*
+   * A forward-only cursor over a key range. Nothing is collected up front: each call to
+   * advance() or next() moves one slot along the leaf chain, so the first pair is ready
+   * after a single descent and a caller can stop at any point. value(buffer) copies into
+   * a caller-supplied buffer so a scan need not allocate per pair. The tree must not be
+   * modified while a cursor is in use.
+   */
+  public class RangeCursor implements Iterator<byte[]> {
+    private final int upperBound;
+    // the pair the next advance() moves to; leaf is null once the range is exhausted
+    private LeafNode leaf;
+    private int index;
+    // the pair the cursor is on
+    private LeafNode currLeaf;
+    private int currIndex;
+
+    private RangeCursor(int lowerBound, int upperBound) {
+      this.upperBound = upperBound;
+      if (isEmpty() || lowerBound > upperBound) {
+        return;
+      }
+
+      // Seek to the leftmost leaf that could hold lowerBound and find the first slot >= lowerBound
+      this.leaf = (root == null) ? firstLeaf : findLeafNodeLowerBound(lowerBound);
+      this.index = KeySearch.lowerBound(this.leaf.keys, this.leaf.numPairs, lowerBound);
+      settle();
     }
-  }
 
-  public class DictionaryPair implements Comparable<DictionaryPair> {
-    int key;
-    byte[] value;
+    // Steps over exhausted leaves and stops the cursor once a key passes upperBound
+    private void settle() {
+      while (this.leaf != null && this.index == this.leaf.numPairs) {
+        this.leaf = this.leaf.rightSibling;
+        this.index = 0;
+      }
+      if (this.leaf != null && this.leaf.keys[this.index] > this.upperBound) {
+        this.leaf = null;
+      }
+    }
+
+    // Moves to the next pair in the range; returns false once there are no more
+    public boolean advance() {
+      if (this.leaf == null) {
+        return false;
+      }
+      this.currLeaf = this.leaf;
+      this.currIndex = this.index;
+      this.index++;
+      settle();
+      return true;
+    }
+
+    public int key() {
+      checkPositioned();
+      return this.currLeaf.keys[this.currIndex];
+    }
+
+    // Copies the current value into buffer
+    public void value(byte[] buffer) {
+      checkPositioned();
+      System.arraycopy(this.currLeaf.values, this.currIndex * valueSize, buffer, 0, valueSize);
+    }
+
+    public boolean hasNext() {
+      return this.leaf != null;
+    }
 
-    public DictionaryPair(int key, byte[] value) {
-      this.key = key;
-      this.value = value;
+    public byte[] next() {
+      if (!advance()) {
+        throw new NoSuchElementException();
+      }
+      return this.currLeaf.getValue(this.currIndex);
+    }
+
+    private void checkPositioned() {
+      if (this.currLeaf == null) {
+        throw new IllegalStateException("Cursor has not been advanced");
+      }
     }
+  }
+
+  /*
+   * A Spliterator over the values with keys in [lowerBound, upperBound]. It covers a run
+   * of adjacent children of one internal node and splits off the first half of that run
+   * as a prefix, so every part is a set of whole subtrees whose leaves form one stretch
+   * of the leaf chain; a part holding a single child splits by moving down into it. Each
+   * part then scans its stretch of leaves until it reaches the first leaf of the next
+   * part. The tree must not be modified while the spliterator or its parts are in use.
+   */
+  private class RangeSpliterator implements Spliterator<byte[]> {
+    private int lowerBound;
+    private final int upperBound;
+    // the children [from, to) of node that this part covers; node is null once it cannot split
+    private InternalNode node;
+    private int from;
+    private int to;
+    // the next slot to visit, and the first leaf of the following part (null for the last part)
+    private LeafNode leaf;
+    private int index;
+    private LeafNode end;
+    private long estimate;
+
+    private RangeSpliterator(int lowerBound, int upperBound) {
+      this.lowerBound = lowerBound;
+      this.upperBound = upperBound;
+      this.estimate = Long.MAX_VALUE;
+      if (isEmpty() || lowerBound > upperBound) {
+        this.estimate = 0;
+        return;
+      }
 
-    public int compareTo(DictionaryPair o) {
-      if (key == o.key) {
-        return 0;
-      } else if (key > o.key) {
-        return 1;
+      this.leaf = (root == null) ? firstLeaf : findLeafNodeLowerBound(lowerBound);
+      this.index = KeySearch.lowerBound(this.leaf.keys, this.leaf.numPairs, lowerBound);
+      if (root != null) {
+        coverChildren(root);
       } else {
-        return -1;
+        this.estimate = this.leaf.numPairs;
       }
     }
+
+    // The part of parent covering its children up to mid, which ends where end starts
+    private RangeSpliterator(RangeSpliterator parent, int mid, LeafNode end) {
+      this.lowerBound = parent.lowerBound;
+      this.upperBound = parent.upperBound;
+      this.node = parent.node;
+      this.from = parent.from;
+      this.to = mid;
+      this.leaf = parent.leaf;
+      this.index = parent.index;
+      this.end = end;
+    }
+
+    // Covers the children of in that can hold keys in [lowerBound, upperBound]
+    private void coverChildren(InternalNode in) {
+      this.node = in;
+      this.from = KeySearch.lowerBound(in.keys, in.degree - 1, this.lowerBound);
+      this.to = Math.max(this.from, KeySearch.upperBound(in.keys, in.degree - 1, this.upperBound)) + 1;
+    }
+
+    public Spliterator<byte[]> trySplit() {
+
+      if (this.node == null) {
+        return null;
+      }
+
+      // A single child has nothing to share, so move down until there are at least two
+      while (this.to - this.from == 1) {
+        Node child = this.node.childPointers[this.from];
+        if (child instanceof LeafNode) {
+          this.node = null;
+          return null;
+        }
+        coverChildren((InternalNode) child);
+      }
+
+      // Hand out the first half of the children as the prefix and keep the rest, which
+      // starts at the first slot of its first subtree
+      int mid = (this.from + this.to) >>> 1;
+      LeafNode boundary = firstLeafOf(this.node.childPointers[mid]);
+      RangeSpliterator prefix = new RangeSpliterator(this, mid, boundary);
+      this.from = mid;
+      this.leaf = boundary;
+      this.index = 0;
+      this.lowerBound = Integer.MIN_VALUE;
+
+      this.estimate >>>= 1;
+      prefix.estimate = this.estimate;
+      return prefix;
+    }
+
+    public boolean tryAdvance(Consumer<? super byte[]> action) {
+
+      while (this.leaf != null && this.leaf != this.end && this.index == this.leaf.numPairs) {
+        this.leaf = this.leaf.rightSibling;
+        this.index = 0;
+      }
+      if (this.leaf == null || this.leaf == this.end || this.leaf.keys[this.index] > this.upperBound) {
+        this.leaf = null;
+        this.node = null;
+        return false;
+      }
+
+      // once traversal has started this part no longer splits
+      this.node = null;
+      action.accept(this.leaf.getValue(this.index));
+      this.index++;
+      return true;
+    }
+
+    public long estimateSize() {
+      return this.estimate;
+    }
+
+    public int characteristics() {
+      return ORDERED | NONNULL;
+    }
   }
 
   public void parseBytes(byte[] Record, boolean printable){
+     parseBytes(Record, 0, printable);
+  }
+
+  // Prints the record stored at offset within Record
+  public void parseBytes(byte[] Record, int offset, boolean printable){
+     if(!printable)
+     return;
+
+     if(this.valueSize == constants.LOCATOR_SIZE)
+     System.out.println("page " + RecordLocator.page(Record, offset) + ", slot " + RecordLocator.slot(Record, offset));
+     else
+     System.out.println(formatRecord(Record, offset));
+  }
+
+  // Returns the csv form of the record stored at offset within Record
+  public static String formatRecord(byte[] Record, int offset){
      int numBytesInSdtnameField = constants.STD_NAME_SIZE;
      int numBytesIntField = Integer.BYTES;
      byte[] sdtnameBytes = new byte[numBytesInSdtnameField];
@@ -588,20 +1401,20 @@ public class BPlusTree {
      byte[] countsBytes = new byte[constants.COUNTS_SIZE];
      SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy hh:mm:ss a");
      
-     System.arraycopy(Record, 0, sdtnameBytes, 0, numBytesInSdtnameField);
+     System.arraycopy(Record, offset, sdtnameBytes, 0, numBytesInSdtnameField);
      
      String sdtNameString = new String(sdtnameBytes);
                     
-     System.arraycopy(Record, constants.ID_OFFSET, idBytes, 0, numBytesIntField);
-     System.arraycopy(Record, constants.DATE_OFFSET, dateBytes, 0, constants.DATE_SIZE);
-     System.arraycopy(Record, constants.YEAR_OFFSET, yearBytes, 0, numBytesIntField);
-     System.arraycopy(Record, constants.MONTH_OFFSET, monthBytes, 0, constants.MONTH_SIZE);
-     System.arraycopy(Record, constants.MDATE_OFFSET, mdateBytes, 0, numBytesIntField);
-     System.arraycopy(Record, constants.DAY_OFFSET, dayBytes, 0, constants.DAY_SIZE);
-     System.arraycopy(Record, constants.TIME_OFFSET, timeBytes, 0, numBytesIntField);
-     System.arraycopy(Record, constants.SENSORID_OFFSET, sensorIdBytes, 0, numBytesIntField);
-     System.arraycopy(Record, constants.SENSORNAME_OFFSET, sensorNameBytes, 0, constants.SENSORNAME_SIZE);
-     System.arraycopy(Record, constants.COUNTS_OFFSET, countsBytes, 0, numBytesIntField);
+     System.arraycopy(Record, offset + constants.ID_OFFSET, idBytes, 0, numBytesIntField);
+     System.arraycopy(Record, offset + constants.DATE_OFFSET, dateBytes, 0, constants.DATE_SIZE);
+     System.arraycopy(Record, offset + constants.YEAR_OFFSET, yearBytes, 0, numBytesIntField);
+     System.arraycopy(Record, offset + constants.MONTH_OFFSET, monthBytes, 0, constants.MONTH_SIZE);
+     System.arraycopy(Record, offset + constants.MDATE_OFFSET, mdateBytes, 0, numBytesIntField);
+     System.arraycopy(Record, offset + constants.DAY_OFFSET, dayBytes, 0, constants.DAY_SIZE);
+     System.arraycopy(Record, offset + constants.TIME_OFFSET, timeBytes, 0, numBytesIntField);
+     System.arraycopy(Record, offset + constants.SENSORID_OFFSET, sensorIdBytes, 0, numBytesIntField);
+     System.arraycopy(Record, offset + constants.SENSORNAME_OFFSET, sensorNameBytes, 0, constants.SENSORNAME_SIZE);
+     System.arraycopy(Record, offset + constants.COUNTS_OFFSET, countsBytes, 0, numBytesIntField);
 
      // Convert long data into Date object
      Date date = new Date(ByteBuffer.wrap(dateBytes).getLong());
@@ -613,14 +1426,17 @@ public class BPlusTree {
                                 + "," + new String(dayBytes).trim() + "," + ByteBuffer.wrap(timeBytes).getInt()
                                 + "," + ByteBuffer.wrap(sensorIdBytes).getInt() + "," +
                                 new String(sensorNameBytes).trim() + "," + ByteBuffer.wrap(countsBytes).getInt();
-     if(printable)
-     System.out.println(record);
+     return record;
   }
   
   public static void main(String[] args) throws IOException {
       
+        // an optional trailing -mmap flag reads the heap file through a memory mapping
+        boolean mapped = args.length == constants.DBQUERY_ARG_COUNT + 1
+                && args[constants.DBQUERY_ARG_COUNT].equals(constants.MMAP_FLAG);
+
         // check for correct number of arguments
-        if (args.length != constants.DBQUERY_ARG_COUNT) {
+        if (args.length != constants.DBQUERY_ARG_COUNT && !mapped) {
             System.out.println("Error: Incorrect number of arguments were input");
             return;
         }
@@ -642,42 +1458,15 @@ public class BPlusTree {
         BPlusTree bpt = null;
         bpt = new BPlusTree(1000);
         
-        int record_id = 0;
         int recordSize = Integer.parseInt(args[constants.DBQUERY_PAGE_SIZE_ARG]);
 
         String datafile = "heap." + recordSize;
-        int numBytesInOneRecord = constants.TOTAL_SIZE;
-        int numBytesInSdtnameField = constants.STD_NAME_SIZE;
-        int numRecordsPerPage = recordSize/numBytesInOneRecord;
-        byte[] page = new byte[recordSize];
-        FileInputStream inStream = null;
+        PageSource heap = null;
 
         try {
-            inStream = new FileInputStream(datafile);
-            int numBytesRead = 0;
-            // Create byte arrays for each field
-            byte[] sdtnameBytes = new byte[numBytesInSdtnameField];
-            
-            // until the end of the binary file is reached
-            while ((numBytesRead = inStream.read(page)) != -1) {
-                // Process each record in page
-                for (int i = 0; i < numRecordsPerPage; i++) {
-                    byte[] recordBytes = new byte[constants.TOTAL_SIZE];
-                    // Copy record's SdtName (field is located at multiples of the total record byte length)
-                    System.arraycopy(page, (i*numBytesInOneRecord), sdtnameBytes, 0, numBytesInSdtnameField);
-
-                    // Check if field is empty; if so, end of all records found (packed organisation)
-                    if (sdtnameBytes[0] == 0) {
-                        // can stop checking records
-                        break;
-                    }
-
-                    System.arraycopy(page, (i*numBytesInOneRecord), recordBytes, 0, constants.TOTAL_SIZE);
-                    
-                    record_id++;
-                    bpt.insert(record_id, recordBytes);
-                }
-            }
+            // both trees load through the same buffer pool or mapping, so the second load can reuse cached pages
+            heap = mapped ? new MappedHeapFile(datafile, recordSize) : new HeapFile(datafile, recordSize);
+            bpt.bulkLoad(heap, constants.BULK_LOAD_FILL_FACTOR);
         }
         catch (FileNotFoundException e) {
             System.err.println("File not found " + e.getMessage());
@@ -685,12 +1474,6 @@ public class BPlusTree {
         catch (IOException e) {
             System.err.println("IO Exception " + e.getMessage());
         }
-        finally {
-
-            if (inStream != null) {
-                inStream.close();
-            }
-        }
 
         bpt.search(rv1, rv2, false);
         startTime = System.nanoTime();
@@ -718,53 +1501,17 @@ public class BPlusTree {
         bpt = null;
         bpt = new BPlusTree(200);
         
-        record_id = 0;
-        recordSize = Integer.parseInt(args[constants.DBQUERY_PAGE_SIZE_ARG]);
-
-        datafile = "heap." + recordSize;
-        numBytesInOneRecord = constants.TOTAL_SIZE;
-        numBytesInSdtnameField = constants.STD_NAME_SIZE;
-        numRecordsPerPage = recordSize/numBytesInOneRecord;
-        page = new byte[recordSize];
-        inStream = null;
-
         try {
-            inStream = new FileInputStream(datafile);
-            int numBytesRead = 0;
-            // Create byte arrays for each field
-            byte[] sdtnameBytes = new byte[numBytesInSdtnameField];
-            
-            // until the end of the binary file is reached
-            while ((numBytesRead = inStream.read(page)) != -1) {
-                // Process each record in page
-                for (int i = 0; i < numRecordsPerPage; i++) {
-                    byte[] recordBytes = new byte[constants.TOTAL_SIZE];
-                    // Copy record's SdtName (field is located at multiples of the total record byte length)
-                    System.arraycopy(page, (i*numBytesInOneRecord), sdtnameBytes, 0, numBytesInSdtnameField);
-
-                    // Check if field is empty; if so, end of all records found (packed organisation)
-                    if (sdtnameBytes[0] == 0) {
-                        // can stop checking records
-                        break;
-                    }
-
-                    System.arraycopy(page, (i*numBytesInOneRecord), recordBytes, 0, constants.TOTAL_SIZE);
-                    
-                    record_id++;
-                    bpt.insert(record_id, recordBytes);
-                }
+            if (heap != null) {
+                bpt.bulkLoad(heap, constants.BULK_LOAD_FILL_FACTOR);
             }
         }
-        catch (FileNotFoundException e) {
-            System.err.println("File not found " + e.getMessage());
-        }
         catch (IOException e) {
             System.err.println("IO Exception " + e.getMessage());
         }
         finally {
-
-            if (inStream != null) {
-                inStream.close();
+            if (heap != null) {
+                heap.close();
             }
         }
 
@@ -0,0 +1,274 @@
+// A fixed-size pool of page frames cached in front of one paged file
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/*
+ * Callers fetch a page, which pins it in a frame, and must unpin it once done, saying
+ * whether they changed it. Only unpinned frames can be evicted; dirty frames are written
+ * back before their frame is reused. The choice of victim is left to an EvictionPolicy.
+ */
+public class BufferPool {
+  private static final int NO_PAGE = -1;
+
+  FileChannel channel;
+  int pageSize;
+  ByteBuffer[] frames;
+  int[] framePageIds;
+  int[] pinCounts;
+  boolean[] dirty;
+  int[] freeFrames;
+  int numFree;
+  HashMap<Integer, Integer> pageTable;
+  EvictionPolicy policy;
+  WriteHook writeHook;
+  long hits;
+  long misses;
+
+  public BufferPool(FileChannel channel, int pageSize, int numFrames, EvictionPolicy policy) {
+    if (numFrames < 1) {
+      throw new IllegalArgumentException("A buffer pool needs at least one frame");
+    }
+
+    this.channel = channel;
+    this.pageSize = pageSize;
+    this.frames = new ByteBuffer[numFrames];
+    this.framePageIds = new int[numFrames];
+    this.pinCounts = new int[numFrames];
+    this.dirty = new boolean[numFrames];
+    this.freeFrames = new int[numFrames];
+    this.pageTable = new HashMap<Integer, Integer>();
+    this.policy = policy;
+
+    for (int i = 0; i < numFrames; i++) {
+      this.frames[i] = ByteBuffer.allocate(pageSize);
+      this.framePageIds[i] = NO_PAGE;
+      this.freeFrames[this.numFree++] = numFrames - 1 - i;
+    }
+  }
+
+  public BufferPool(FileChannel channel, int pageSize, int numFrames) {
+    this(channel, pageSize, numFrames, new ClockPolicy(numFrames));
+  }
+
+  // Pins the page in a frame, reading it from the file on a miss
+  public synchronized ByteBuffer fetchPage(int pageId) throws IOException {
+
+    Integer frame = this.pageTable.get(pageId);
+    if (frame != null) {
+      this.hits++;
+      this.pinCounts[frame]++;
+      this.policy.accessed(frame);
+      return this.frames[frame];
+    }
+
+    this.misses++;
+    int victim = claimFrame(pageId);
+    ByteBuffer buffer = this.frames[victim];
+    buffer.clear();
+    long position = (long) pageId * this.pageSize;
+    while (buffer.hasRemaining()) {
+      if (this.channel.read(buffer, position + buffer.position()) == -1) {
+        releaseFrame(victim);
+        throw new IOException("Page " + pageId + " is past the end of the file");
+      }
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  // Pins a zeroed frame for a page that does not exist in the file yet
+  public synchronized ByteBuffer newPage(int pageId) throws IOException {
+
+    if (this.pageTable.containsKey(pageId)) {
+      throw new IllegalStateException("Page " + pageId + " is already cached");
+    }
+
+    int victim = claimFrame(pageId);
+    this.dirty[victim] = true;
+    ByteBuffer buffer = this.frames[victim];
+    Arrays.fill(buffer.array(), (byte) 0);
+    buffer.clear();
+    return buffer;
+  }
+
+  public synchronized void unpinPage(int pageId, boolean isDirty) {
+
+    Integer frame = this.pageTable.get(pageId);
+    if (frame == null || this.pinCounts[frame] == 0) {
+      throw new IllegalStateException("Page " + pageId + " is not pinned");
+    }
+
+    this.pinCounts[frame]--;
+    this.dirty[frame] |= isDirty;
+  }
+
+  public synchronized void flushAll() throws IOException {
+    for (int i = 0; i < this.frames.length; i++) {
+      if (this.framePageIds[i] != NO_PAGE && this.dirty[i]) {
+        writeFrame(i);
+      }
+    }
+  }
+
+  // Runs hook before every write of a dirty page back to the file
+  public synchronized void setWriteHook(WriteHook hook) {
+    this.writeHook = hook;
+  }
+
+  public synchronized long hits() {
+    return this.hits;
+  }
+
+  public synchronized long misses() {
+    return this.misses;
+  }
+
+  public int numFrames() {
+    return this.frames.length;
+  }
+
+  // Finds a free or evictable frame, writes back its old page and maps pageId onto it
+  private int claimFrame(int pageId) throws IOException {
+
+    int frame = (this.numFree > 0) ? this.freeFrames[--this.numFree] : this.policy.victim(this.pinCounts);
+    if (frame == NO_PAGE) {
+      throw new IllegalStateException("All " + this.frames.length + " frames are pinned");
+    }
+
+    if (this.framePageIds[frame] != NO_PAGE) {
+      if (this.dirty[frame]) {
+        writeFrame(frame);
+      }
+      this.pageTable.remove(this.framePageIds[frame]);
+    }
+
+    this.framePageIds[frame] = pageId;
+    this.pinCounts[frame] = 1;
+    this.dirty[frame] = false;
+    this.pageTable.put(pageId, frame);
+    this.policy.accessed(frame);
+    return frame;
+  }
+
+  private void releaseFrame(int frame) {
+    this.pageTable.remove(this.framePageIds[frame]);
+    this.framePageIds[frame] = NO_PAGE;
+    this.pinCounts[frame] = 0;
+    this.dirty[frame] = false;
+    this.freeFrames[this.numFree++] = frame;
+  }
+
+  private void writeFrame(int frame) throws IOException {
+    if (this.writeHook != null) {
+      this.writeHook.beforeWrite(this.framePageIds[frame], this.frames[frame]);
+    }
+    ByteBuffer buffer = this.frames[frame].duplicate();
+    buffer.clear();
+    long position = (long) this.framePageIds[frame] * this.pageSize;
+    while (buffer.hasRemaining()) {
+      this.channel.write(buffer, position + buffer.position());
+    }
+    this.dirty[frame] = false;
+  }
+
+  // Lets the owner of the file act before a page is written back, e.g. log and force its image
+  public interface WriteHook {
+    void beforeWrite(int pageId, ByteBuffer page) throws IOException;
+  }
+
+  // Decides which unpinned frame to reuse when the pool is full
+  public interface EvictionPolicy {
+
+    // Called whenever a frame is pinned
+    void accessed(int frame);
+
+    // Returns an unpinned frame to evict, or -1 if every frame is pinned
+    int victim(int[] pinCounts);
+  }
+
+  // Second-chance clock: a frame accessed since the hand last passed is skipped once
+  public static class ClockPolicy implements EvictionPolicy {
+    boolean[] referenced;
+    int hand;
+
+    public ClockPolicy(int numFrames) {
+      this.referenced = new boolean[numFrames];
+    }
+
+    public void accessed(int frame) {
+      this.referenced[frame] = true;
+    }
+
+    public int victim(int[] pinCounts) {
+      for (int i = 0; i < 2 * pinCounts.length; i++) {
+        int frame = this.hand;
+        this.hand = (this.hand + 1) % pinCounts.length;
+        if (pinCounts[frame] > 0) {
+          continue;
+        }
+        if (this.referenced[frame]) {
+          this.referenced[frame] = false;
+        } else {
+          return frame;
+        }
+      }
+      return NO_PAGE;
+    }
+  }
+
+  // Least recently used, kept as a doubly linked list over frame numbers
+  public static class LruPolicy implements EvictionPolicy {
+    int[] prev;
+    int[] next;
+    int head = NO_PAGE;
+    int tail = NO_PAGE;
+
+    public LruPolicy(int numFrames) {
+      this.prev = new int[numFrames];
+      this.next = new int[numFrames];
+      Arrays.fill(this.prev, NO_PAGE);
+      Arrays.fill(this.next, NO_PAGE);
+    }
+
+    public void accessed(int frame) {
+      if (this.head == frame) {
+        return;
+      }
+
+      // unlink, if already in the list
+      if (this.prev[frame] != NO_PAGE || this.tail == frame) {
+        if (this.prev[frame] != NO_PAGE) {
+          this.next[this.prev[frame]] = this.next[frame];
+        }
+        if (this.next[frame] != NO_PAGE) {
+          this.prev[this.next[frame]] = this.prev[frame];
+        } else {
+          this.tail = this.prev[frame];
+        }
+      }
+
+      // move to the most recently used end
+      this.prev[frame] = NO_PAGE;
+      this.next[frame] = this.head;
+      if (this.head != NO_PAGE) {
+        this.prev[this.head] = frame;
+      }
+      this.head = frame;
+      if (this.tail == NO_PAGE) {
+        this.tail = frame;
+      }
+    }
+
+    public int victim(int[] pinCounts) {
+      for (int frame = this.tail; frame != NO_PAGE; frame = this.prev[frame]) {
+        if (pinCounts[frame] == 0) {
+          return frame;
+        }
+      }
+      return NO_PAGE;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// Page-at-a-time access to a heap file written by dbload -compress
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/*
+ * Pages are stored back to back at their compressed lengths, and the directory file
+ * beside the heap (heap file name + PageCodec.DIRECTORY_SUFFIX) holds the end offset of
+ * each one as a long. A page is fetched with one positional read of just its compressed
+ * bytes and decompressed into a page buffer, so a cold scan reads as much less from disk
+ * as the pages shrank. Buffers are reused once their page is unpinned.
+ */
+public class CompressedHeapFile implements PageSource {
+  RandomAccessFile file;
+  FileChannel channel;
+  PageCodec codec;
+  int pageSize;
+  int numRecordsPerPage;
+  long[] pageEnds;
+  byte[] compressed;
+  // decompressed pages still in use, with their pin counts
+  HashMap<Integer, ByteBuffer> pinnedPages = new HashMap<Integer, ByteBuffer>();
+  HashMap<Integer, Integer> pinCounts = new HashMap<Integer, Integer>();
+  ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+
+  public CompressedHeapFile(String datafile, PageLayout layout) throws IOException {
+
+    RandomAccessFile directory = new RandomAccessFile(datafile + PageCodec.DIRECTORY_SUFFIX, "r");
+    try {
+      ByteBuffer ends = ByteBuffer.allocate((int) directory.length());
+      directory.readFully(ends.array());
+      this.pageEnds = new long[ends.capacity() / Long.BYTES];
+      for (int i = 0; i < this.pageEnds.length; i++) {
+        this.pageEnds[i] = ends.getLong();
+      }
+    } finally {
+      directory.close();
+    }
+
+    this.file = new RandomAccessFile(datafile, "r");
+    if (this.pageEnds.length > 0 && this.pageEnds[this.pageEnds.length - 1] > this.file.length()) {
+      this.file.close();
+      throw new IOException("Page directory does not match " + datafile);
+    }
+    this.channel = this.file.getChannel();
+    this.codec = new PageCodec(layout);
+    this.pageSize = layout.pageSize;
+    this.numRecordsPerPage = layout.numRecordsPerPage;
+    this.compressed = new byte[this.codec.maxCompressedLength()];
+  }
+
+  public int numPages() {
+    return this.pageEnds.length;
+  }
+
+  public int numRecordsPerPage() {
+    return this.numRecordsPerPage;
+  }
+
+  public ByteBuffer fetchPage(int pageId) throws IOException {
+
+    ByteBuffer page = this.pinnedPages.get(pageId);
+    if (page != null) {
+      this.pinCounts.merge(pageId, 1, Integer::sum);
+      return page;
+    }
+
+    long start = (pageId == 0) ? 0 : this.pageEnds[pageId - 1];
+    int length = (int) (this.pageEnds[pageId] - start);
+    ByteBuffer frame = ByteBuffer.wrap(this.compressed, 0, length);
+    while (frame.hasRemaining()) {
+      if (this.channel.read(frame, start + frame.position()) < 0) {
+        throw new EOFException("Page " + pageId + " is cut short");
+      }
+    }
+
+    page = this.freeBuffers.isEmpty() ? ByteBuffer.allocate(this.pageSize) : this.freeBuffers.poll();
+    this.codec.decompress(this.compressed, 0, length, page);
+    this.pinnedPages.put(pageId, page);
+    this.pinCounts.put(pageId, 1);
+    return page;
+  }
+
+  public void unpinPage(int pageId) {
+    int pins = this.pinCounts.merge(pageId, -1, Integer::sum);
+    if (pins == 0) {
+      this.pinCounts.remove(pageId);
+      this.freeBuffers.add(this.pinnedPages.remove(pageId));
+    }
+  }
+
+  public void close() throws IOException {
+    this.file.close();
+  }
+}
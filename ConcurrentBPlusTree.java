@@ -0,0 +1,411 @@
+// A thread-safe B+ tree using per-node latches
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Every node carries a read/write latch and threads couple latches on the way down
+ * ("crabbing"): a child is latched before its parent is released.
+ *
+ * Readers hold read latches on at most two nodes at a time, so any number of them run in
+ * parallel with each other and with writers working on other parts of the tree.
+ * Writers first try an optimistic descent with read latches and only write-latch the
+ * leaf; if the leaf would split they restart with write latches from the root, keeping
+ * ancestors latched only while a split could still reach them. Range scans move along
+ * the leaf chain left to right, the same direction splits link new leaves, so scans and
+ * writers cannot deadlock.
+ */
+public class ConcurrentBPlusTree {
+  int m;
+  int valueSize;
+  Node root;
+  final ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock();
+  final AtomicLong numPairs = new AtomicLong();
+
+  public ConcurrentBPlusTree(int m) {
+    this(m, constants.TOTAL_SIZE);
+  }
+
+  public ConcurrentBPlusTree(int m, int valueSize) {
+    if (m < 3) {
+      throw new IllegalArgumentException("Fanout must be at least 3");
+    }
+    this.m = m;
+    this.valueSize = valueSize;
+    this.root = new LeafNode();
+  }
+
+  public void insert(int key, byte[] value) {
+    if (value.length != this.valueSize) {
+      throw new IllegalArgumentException("Value must be " + this.valueSize + " bytes, got " + value.length);
+    }
+
+    if (!insertOptimistic(key, value)) {
+      insertPessimistic(key, value);
+    }
+    this.numPairs.incrementAndGet();
+  }
+
+  public byte[] search(int key) {
+    byte[] buffer = new byte[this.valueSize];
+    return search(key, buffer) ? buffer : null;
+  }
+
+  // Copies the value for key into buffer; returns false if key is absent
+  public boolean search(int key, byte[] buffer) {
+
+    LeafNode leaf = findLeafShared(key, false);
+    try {
+      int index = Arrays.binarySearch(leaf.keys, 0, leaf.numKeys, key);
+      if (index < 0) {
+        return false;
+      }
+      System.arraycopy(leaf.values, index * this.valueSize, buffer, 0, this.valueSize);
+      return true;
+    } finally {
+      leaf.latch.readLock().unlock();
+    }
+  }
+
+  public ArrayList<byte[]> search(int lowerBound, int upperBound) {
+
+    ArrayList<byte[]> values = new ArrayList<byte[]>();
+    if (lowerBound > upperBound) {
+      return values;
+    }
+
+    LeafNode leaf = findLeafShared(lowerBound, true);
+    int index = KeySearch.lowerBound(leaf.keys, leaf.numKeys, lowerBound);
+
+    while (true) {
+      for (int i = index; i < leaf.numKeys; i++) {
+        if (leaf.keys[i] > upperBound) {
+          leaf.latch.readLock().unlock();
+          return values;
+        }
+        values.add(Arrays.copyOfRange(leaf.values, i * this.valueSize, (i + 1) * this.valueSize));
+      }
+
+      // latch the next leaf before letting go of this one
+      LeafNode next = leaf.next;
+      if (next != null) {
+        next.latch.readLock().lock();
+      }
+      leaf.latch.readLock().unlock();
+      if (next == null) {
+        return values;
+      }
+      leaf = next;
+      index = 0;
+    }
+  }
+
+  public long size() {
+    return this.numPairs.get();
+  }
+
+  /*
+   * Walks the whole tree and throws IllegalStateException if keys are out of order,
+   * a child falls outside its separators, leaves sit at different depths, the leaf
+   * chain skips a leaf or the number of pairs does not match size(). Only meaningful
+   * while no writers are running.
+   */
+  public void checkInvariants() {
+
+    rootLatch.readLock().lock();
+    try {
+      ArrayList<LeafNode> leaves = new ArrayList<LeafNode>();
+      checkNode(this.root, Long.MIN_VALUE, Long.MAX_VALUE, 0, new int[] { -1 }, leaves);
+
+      long count = 0;
+      for (int i = 0; i < leaves.size(); i++) {
+        LeafNode leaf = leaves.get(i);
+        LeafNode expectedNext = (i + 1 < leaves.size()) ? leaves.get(i + 1) : null;
+        if (leaf.next != expectedNext) {
+          throw new IllegalStateException("Leaf chain does not follow key order at leaf " + i);
+        }
+        count += leaf.numKeys;
+      }
+      if (count != size()) {
+        throw new IllegalStateException("Tree holds " + count + " pairs but size is " + size());
+      }
+    } finally {
+      rootLatch.readLock().unlock();
+    }
+  }
+
+  private void checkNode(Node node, long low, long high, int depth, int[] leafDepth, ArrayList<LeafNode> leaves) {
+
+    for (int i = 0; i < node.numKeys; i++) {
+      if (node.keys[i] < low || node.keys[i] > high || (i > 0 && node.keys[i - 1] > node.keys[i])) {
+        throw new IllegalStateException("Key " + node.keys[i] + " out of order at depth " + depth);
+      }
+    }
+
+    if (node instanceof LeafNode) {
+      if (leafDepth[0] == -1) {
+        leafDepth[0] = depth;
+      } else if (leafDepth[0] != depth) {
+        throw new IllegalStateException("Leaves at depths " + leafDepth[0] + " and " + depth);
+      }
+      if (node.numKeys > this.m - 1) {
+        throw new IllegalStateException("Leaf holds " + node.numKeys + " pairs");
+      }
+      leaves.add((LeafNode) node);
+      return;
+    }
+
+    InternalNode in = (InternalNode) node;
+    if (in.numKeys < 1 || in.numKeys > this.m - 1) {
+      throw new IllegalStateException("Internal node has " + (in.numKeys + 1) + " children");
+    }
+    for (int i = 0; i <= in.numKeys; i++) {
+      long childLow = (i == 0) ? low : in.keys[i - 1];
+      long childHigh = (i == in.numKeys) ? high : in.keys[i];
+      checkNode(in.children[i], childLow, childHigh, depth + 1, leafDepth, leaves);
+    }
+  }
+
+  // Index of the child covering key: the number of separators <= key
+  private int childIndex(InternalNode in, int key) {
+    return KeySearch.upperBound(in.keys, in.numKeys, key);
+  }
+
+  // Read-crabs down to the leaf for key and returns it read-latched
+  private LeafNode findLeafShared(int key, boolean leftmost) {
+
+    rootLatch.readLock().lock();
+    Node node = this.root;
+    node.latch.readLock().lock();
+    rootLatch.readLock().unlock();
+
+    while (node instanceof InternalNode) {
+      InternalNode in = (InternalNode) node;
+      Node child = in.children[leftmost ? KeySearch.lowerBound(in.keys, in.numKeys, key) : childIndex(in, key)];
+      child.latch.readLock().lock();
+      node.latch.readLock().unlock();
+      node = child;
+    }
+    return (LeafNode) node;
+  }
+
+  /*
+   * Descends with read latches and write-latches only the leaf. Succeeds if the leaf has
+   * room, which is the common case; returns false without changing anything otherwise.
+   */
+  private boolean insertOptimistic(int key, byte[] value) {
+
+    rootLatch.readLock().lock();
+    Node node = this.root;
+    if (node instanceof LeafNode) {
+      node.latch.writeLock().lock();
+    } else {
+      node.latch.readLock().lock();
+    }
+    rootLatch.readLock().unlock();
+
+    while (node instanceof InternalNode) {
+      InternalNode in = (InternalNode) node;
+      Node child = in.children[childIndex(in, key)];
+      if (child instanceof LeafNode) {
+        child.latch.writeLock().lock();
+      } else {
+        child.latch.readLock().lock();
+      }
+      node.latch.readLock().unlock();
+      node = child;
+    }
+
+    LeafNode leaf = (LeafNode) node;
+    try {
+      if (leaf.numKeys == this.m - 1) {
+        return false;
+      }
+      leaf.insert(key, value);
+      return true;
+    } finally {
+      leaf.latch.writeLock().unlock();
+    }
+  }
+
+  /*
+   * Write-crabs down from the root. Ancestors stay latched only while the node below
+   * them is full, since only then can a split reach them; the latch on the root
+   * pointer is kept only while the root itself might split.
+   */
+  private void insertPessimistic(int key, byte[] value) {
+
+    ArrayList<Node> held = new ArrayList<Node>();
+    rootLatch.writeLock().lock();
+    boolean rootLatched = true;
+
+    Node node = this.root;
+    node.latch.writeLock().lock();
+    held.add(node);
+
+    while (true) {
+      if (node.isSafeForInsert()) {
+        // nothing above this node can change: release the root pointer and all ancestors
+        if (rootLatched) {
+          rootLatch.writeLock().unlock();
+          rootLatched = false;
+        }
+        for (int i = 0; i < held.size() - 1; i++) {
+          held.get(i).latch.writeLock().unlock();
+        }
+        Node last = held.get(held.size() - 1);
+        held.clear();
+        held.add(last);
+      }
+
+      if (node instanceof LeafNode) {
+        break;
+      }
+
+      InternalNode in = (InternalNode) node;
+      node = in.children[childIndex(in, key)];
+      node.latch.writeLock().lock();
+      held.add(node);
+    }
+
+    try {
+      LeafNode leaf = (LeafNode) node;
+      leaf.insert(key, value);
+      if (leaf.numKeys < this.m) {
+        return;
+      }
+
+      // Split upwards through the latched ancestors
+      Node right = leaf.split();
+      int separator = right.keys[0];
+      int level = held.size() - 1;
+
+      while (true) {
+        Node child = held.get(level);
+        if (level == 0) {
+          // the split reached the root, so the tree grows by one level
+          InternalNode newRoot = new InternalNode();
+          newRoot.keys[0] = separator;
+          newRoot.children[0] = child;
+          newRoot.children[1] = right;
+          newRoot.numKeys = 1;
+          this.root = newRoot;
+          return;
+        }
+
+        InternalNode parent = (InternalNode) held.get(level - 1);
+        parent.insertChild(separator, right, parent.indexOfChild(child) + 1);
+        if (parent.numKeys < this.m) {
+          return;
+        }
+
+        int[] pushed = new int[1];
+        right = parent.split(pushed);
+        separator = pushed[0];
+        level--;
+      }
+    } finally {
+      for (Node n : held) {
+        n.latch.writeLock().unlock();
+      }
+      if (rootLatched) {
+        rootLatch.writeLock().unlock();
+      }
+    }
+  }
+
+  private abstract class Node {
+    final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+    int numKeys;
+    int[] keys;
+
+    abstract boolean isSafeForInsert();
+  }
+
+  private class InternalNode extends Node {
+    Node[] children;
+
+    private InternalNode() {
+      // one spare key and child slot let a node overflow before it splits
+      this.keys = new int[m];
+      this.children = new Node[m + 1];
+    }
+
+    boolean isSafeForInsert() {
+      return this.numKeys < m - 1;
+    }
+
+    private int indexOfChild(Node child) {
+      for (int i = 0; i <= this.numKeys; i++) {
+        if (this.children[i] == child) {
+          return i;
+        }
+      }
+      throw new IllegalStateException("Child not found in parent");
+    }
+
+    // Inserts child at index with key as the separator to its left
+    private void insertChild(int key, Node child, int index) {
+      System.arraycopy(this.keys, index - 1, this.keys, index, this.numKeys - index + 1);
+      System.arraycopy(this.children, index, this.children, index + 1, this.numKeys + 1 - index);
+      this.keys[index - 1] = key;
+      this.children[index] = child;
+      this.numKeys++;
+    }
+
+    // Moves the keys after the middle one into a new right node; the middle key is pushed up
+    private InternalNode split(int[] pushedKey) {
+      int mid = this.numKeys / 2;
+      InternalNode right = new InternalNode();
+      right.numKeys = this.numKeys - mid - 1;
+      System.arraycopy(this.keys, mid + 1, right.keys, 0, right.numKeys);
+      System.arraycopy(this.children, mid + 1, right.children, 0, right.numKeys + 1);
+      Arrays.fill(this.children, mid + 1, this.numKeys + 1, null);
+      pushedKey[0] = this.keys[mid];
+      this.numKeys = mid;
+      return right;
+    }
+  }
+
+  private class LeafNode extends Node {
+    byte[] values;
+    LeafNode next;
+
+    private LeafNode() {
+      this.keys = new int[m];
+      this.values = new byte[m * valueSize];
+    }
+
+    boolean isSafeForInsert() {
+      return this.numKeys < m - 1;
+    }
+
+    // Inserts after any equal keys, shifting later pairs right
+    private void insert(int key, byte[] value) {
+      int index = KeySearch.lowerBound(this.keys, this.numKeys, key);
+      while (index < this.numKeys && this.keys[index] == key) {
+        index++;
+      }
+      System.arraycopy(this.keys, index, this.keys, index + 1, this.numKeys - index);
+      System.arraycopy(this.values, index * valueSize, this.values, (index + 1) * valueSize,
+          (this.numKeys - index) * valueSize);
+      this.keys[index] = key;
+      System.arraycopy(value, 0, this.values, index * valueSize, valueSize);
+      this.numKeys++;
+    }
+
+    // Moves the upper half into a new right leaf and links it into the chain
+    private LeafNode split() {
+      int leftCount = (this.numKeys + 1) / 2;
+      LeafNode right = new LeafNode();
+      right.numKeys = this.numKeys - leftCount;
+      System.arraycopy(this.keys, leftCount, right.keys, 0, right.numKeys);
+      System.arraycopy(this.values, leftCount * valueSize, right.values, 0, right.numKeys * valueSize);
+      this.numKeys = leftCount;
+      right.next = this.next;
+      this.next = right;
+      return right;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+// Stress test for ConcurrentBPlusTree under mixed multi-threaded work
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Usage: java ConcurrentStressCheck [threads] [rounds] [opsPerThread]
+ *
+ * For small and large fanouts, runs rounds in which every thread mixes inserts (with
+ * plenty of duplicate keys), point searches and range searches on one shared tree.
+ * Values hold their own key and a unique id. While a round runs, every search must see
+ * all pairs inserted in earlier rounds, and every range must come back in key order
+ * within its bounds. After each round checkInvariants() is called and the whole tree is
+ * compared with a sequential oracle of everything inserted so far. Exits with status 1
+ * on the first failure.
+ */
+public class ConcurrentStressCheck {
+  private static final int[] FANOUTS = { 3, 8, 200, 1000 };
+  private static final int VALUE_SIZE = 2 * Integer.BYTES;
+
+  private static byte[] value(int key, int id) {
+    return ByteBuffer.allocate(VALUE_SIZE).putInt(key).putInt(id).array();
+  }
+
+  private static void fail(String message) {
+    System.out.println("FAILED: " + message);
+    System.exit(1);
+  }
+
+  /*
+   * One thread's share of a round; oracle holds the pairs of earlier rounds and is only
+   * read. Returns the pairs inserted as {key, id}.
+   */
+  private static List<int[]> work(ConcurrentBPlusTree tree, TreeMap<Integer, Integer> oracle, int keySpace,
+      int numOps, int firstId, long seed) {
+
+    Random random = new Random(seed);
+    List<int[]> inserted = new ArrayList<int[]>();
+    int id = firstId;
+
+    for (int op = 0; op < numOps; op++) {
+      int choice = random.nextInt(10);
+      int key = random.nextInt(keySpace);
+
+      if (choice < 5) {
+        tree.insert(key, value(key, id));
+        inserted.add(new int[] { key, id });
+        id++;
+
+      } else if (choice < 8) {
+        byte[] found = tree.search(key);
+        if (oracle.containsKey(key) && found == null) {
+          fail("search lost key " + key);
+        }
+        if (found != null && ByteBuffer.wrap(found).getInt() != key) {
+          fail("search for " + key + " returned a value of key " + ByteBuffer.wrap(found).getInt());
+        }
+
+      } else {
+        int high = key + random.nextInt(64);
+        int previous = Integer.MIN_VALUE;
+        Map<Integer, Integer> seen = new HashMap<Integer, Integer>();
+        for (byte[] v : tree.search(key, high)) {
+          int k = ByteBuffer.wrap(v).getInt();
+          if (k < key || k > high || k < previous) {
+            fail("range [" + key + ", " + high + "] returned key " + k + " after " + previous);
+          }
+          previous = k;
+          seen.merge(k, 1, Integer::sum);
+        }
+        for (Map.Entry<Integer, Integer> e : oracle.subMap(key, true, high, true).entrySet()) {
+          if (seen.getOrDefault(e.getKey(), 0) < e.getValue()) {
+            fail("range [" + key + ", " + high + "] lost copies of key " + e.getKey());
+          }
+        }
+      }
+    }
+    return inserted;
+  }
+
+  public static void main(String[] args) throws Exception {
+
+    int numThreads = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+    int numRounds = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+    int opsPerThread = (args.length > 2) ? Integer.parseInt(args[2]) : 5000;
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+    try {
+      for (int m : FANOUTS) {
+        ConcurrentBPlusTree tree = new ConcurrentBPlusTree(m, VALUE_SIZE);
+        // key -> number of copies, and key -> ids, of every pair inserted so far
+        TreeMap<Integer, Integer> oracle = new TreeMap<Integer, Integer>();
+        Map<Integer, List<Integer>> oracleIds = new HashMap<Integer, List<Integer>>();
+        // few enough keys that most of them repeat
+        int keySpace = numThreads * opsPerThread / 4;
+        int nextId = 0;
+
+        for (int round = 0; round < numRounds; round++) {
+          List<Future<List<int[]>>> results = new ArrayList<Future<List<int[]>>>();
+          for (int t = 0; t < numThreads; t++) {
+            int firstId = nextId + t * opsPerThread;
+            long seed = 31L * (m * 1000 + round) + t;
+            results.add(pool.submit(() -> work(tree, oracle, keySpace, opsPerThread, firstId, seed)));
+          }
+          nextId += numThreads * opsPerThread;
+
+          // the round is over once every thread is; only then is the oracle updated
+          List<int[]> inserted = new ArrayList<int[]>();
+          for (Future<List<int[]>> result : results) {
+            try {
+              inserted.addAll(result.get());
+            } catch (ExecutionException e) {
+              fail("worker threw " + e.getCause());
+            }
+          }
+          for (int[] pair : inserted) {
+            oracle.merge(pair[0], 1, Integer::sum);
+            oracleIds.computeIfAbsent(pair[0], k -> new ArrayList<Integer>()).add(pair[1]);
+          }
+
+          try {
+            tree.checkInvariants();
+          } catch (IllegalStateException e) {
+            fail("m=" + m + " round " + round + ": " + e.getMessage());
+          }
+
+          // the whole tree, key by key, against the oracle
+          Map<Integer, List<Integer>> treeIds = new HashMap<Integer, List<Integer>>();
+          for (byte[] v : tree.search(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(v);
+            treeIds.computeIfAbsent(buffer.getInt(), k -> new ArrayList<Integer>()).add(buffer.getInt());
+          }
+          if (!treeIds.keySet().equals(oracleIds.keySet())) {
+            fail("m=" + m + " round " + round + ": tree and oracle hold different keys");
+          }
+          for (Map.Entry<Integer, List<Integer>> e : oracleIds.entrySet()) {
+            List<Integer> expected = new ArrayList<Integer>(e.getValue());
+            List<Integer> actual = new ArrayList<Integer>(treeIds.get(e.getKey()));
+            Collections.sort(expected);
+            Collections.sort(actual);
+            if (!expected.equals(actual)) {
+              fail("m=" + m + " round " + round + ": values of key " + e.getKey() + " differ");
+            }
+          }
+        }
+        System.out.println("fanout " + m + ": " + numRounds + " rounds of " + numThreads + " threads x "
+            + opsPerThread + " ops ok, " + tree.size() + " pairs");
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,170 @@
+// Parses the Date_Time column of the csv without SimpleDateFormat
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.TimeZone;
+
+/*
+ * Reads "MM/dd/yyyy hh:mm:ss a" by hand and returns the same epoch milliseconds as
+ * SimpleDateFormat with that pattern in the given time zone. The wall-clock time is
+ * turned into milliseconds arithmetically and the zone offset is then looked up the way
+ * a lenient GregorianCalendar resolves it, so times that fall in a daylight saving gap or
+ * overlap come out as SimpleDateFormat has them. Anything out of the ordinary (one-digit
+ * fields, out of range values, years outside 1901-2036, where the JDK's own zone tables
+ * stop following the tz rules) is handed to SimpleDateFormat itself.
+ * Instances are not thread-safe; each loader thread keeps its own.
+ */
+public class DateTimeParser {
+  public static final String PATTERN = "MM/dd/yyyy hh:mm:ss a";
+
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+  private static final long MAX_OFFSET_MILLIS = 18L * 60 * 60 * 1000;
+  // "a" stands for the two letters AM or PM
+  private static final int LENGTH = PATTERN.length() + 1;
+  private static final long NOT_PARSED = Long.MIN_VALUE;
+  private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+  ZoneRules rules;
+  SimpleDateFormat fallback;
+  byte[] scratch = new byte[LENGTH];
+  // wall-clock times in [cachedFrom, cachedTo) all have cachedOffset
+  long cachedFrom;
+  long cachedTo;
+  int cachedOffset;
+
+  public DateTimeParser(TimeZone zone) {
+    this.rules = zone.toZoneId().getRules();
+    this.fallback = new SimpleDateFormat(PATTERN);
+    this.fallback.setTimeZone(zone);
+  }
+
+  public DateTimeParser() {
+    this(TimeZone.getDefault());
+  }
+
+  public long parse(String text) throws ParseException {
+    if (text.length() == LENGTH) {
+      for (int i = 0; i < LENGTH; i++) {
+        // anything beyond ASCII becomes a byte parseFast rejects
+        char c = text.charAt(i);
+        this.scratch[i] = (c < 0x80) ? (byte) c : 0;
+      }
+      long millis = parseFast(this.scratch, 0);
+      if (millis != NOT_PARSED) {
+        return millis;
+      }
+    }
+    return this.fallback.parse(text).getTime();
+  }
+
+  // Same as above for the bytes of text in [start, end), without allocating
+  public long parse(byte[] text, int start, int end) throws ParseException {
+    if (end - start == LENGTH) {
+      long millis = parseFast(text, start);
+      if (millis != NOT_PARSED) {
+        return millis;
+      }
+    }
+    return this.fallback.parse(new String(text, start, end - start)).getTime();
+  }
+
+  // Epoch milliseconds of the LENGTH bytes at start, or NOT_PARSED if they need the fallback
+  private long parseFast(byte[] text, int start) {
+
+    // MM/dd/yyyy hh:mm:ss AM
+    if (text[start + 2] != '/' || text[start + 5] != '/' || text[start + 10] != ' ' || text[start + 13] != ':'
+        || text[start + 16] != ':' || text[start + 19] != ' ' || text[start + 21] != 'M') {
+      return NOT_PARSED;
+    }
+
+    int month = digits(text, start, 2);
+    int day = digits(text, start + 3, 2);
+    int year = digits(text, start + 6, 4);
+    int hour = digits(text, start + 11, 2);
+    int minute = digits(text, start + 14, 2);
+    int second = digits(text, start + 17, 2);
+    byte marker = text[start + 20];
+
+    if (year <= 1900 || year >= 2037 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+        || hour < 1 || hour > 12 || minute > 59 || second > 59 || (marker != 'A' && marker != 'P')) {
+      // digits() returns -1 for a non-digit, which also lands here
+      return NOT_PARSED;
+    }
+
+    // 12 AM is midnight and 12 PM is noon
+    int hourOfDay = (hour % 12) + ((marker == 'P') ? 12 : 0);
+    long wall = daysSinceEpoch(year, month, day) * MILLIS_PER_DAY
+        + ((hourOfDay * 60L + minute) * 60 + second) * 1000;
+    return wall - offsetAtWall(wall);
+  }
+
+  /*
+   * The zone offset for a wall-clock time, as GregorianCalendar picks it: the offset
+   * after the last transition whose new wall-clock time is at or before wall. A time in
+   * a spring-forward gap therefore keeps the earlier offset, and a time in a fall-back
+   * overlap takes the later one. The answer holds until the next such transition, so
+   * it is cached and the rules are only consulted about once per daylight saving period.
+   */
+  private int offsetAtWall(long wall) {
+
+    if (wall >= this.cachedFrom && wall < this.cachedTo) {
+      return this.cachedOffset;
+    }
+
+    // no offset exceeds 18 hours, so every transition that counts is before wall + 18h
+    ZoneOffsetTransition last = this.rules.previousTransition(Instant.ofEpochMilli(wall + MAX_OFFSET_MILLIS));
+    while (last != null && wallAfter(last) > wall) {
+      last = this.rules.previousTransition(last.getInstant());
+    }
+
+    ZoneOffsetTransition next;
+    if (last == null) {
+      next = this.rules.nextTransition(Instant.ofEpochMilli(wall - MAX_OFFSET_MILLIS));
+      this.cachedOffset = (next != null) ? next.getOffsetBefore().getTotalSeconds() * 1000
+          : this.rules.getOffset(Instant.ofEpochMilli(wall)).getTotalSeconds() * 1000;
+      this.cachedFrom = Long.MIN_VALUE;
+    } else {
+      next = this.rules.nextTransition(last.getInstant());
+      this.cachedOffset = last.getOffsetAfter().getTotalSeconds() * 1000;
+      this.cachedFrom = wallAfter(last);
+    }
+    this.cachedTo = (next != null) ? wallAfter(next) : Long.MAX_VALUE;
+    return this.cachedOffset;
+  }
+
+  // The first wall-clock time after transition, in milliseconds
+  private static long wallAfter(ZoneOffsetTransition transition) {
+    return transition.getInstant().toEpochMilli() + transition.getOffsetAfter().getTotalSeconds() * 1000L;
+  }
+
+  // Value of the count decimal digits at start, or -1 if any of them is not a digit
+  private static int digits(byte[] text, int start, int count) {
+    int value = 0;
+    for (int i = start; i < start + count; i++) {
+      int d = text[i] - '0';
+      if (d < 0 || d > 9) {
+        return -1;
+      }
+      value = value * 10 + d;
+    }
+    return value;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    return (month == 2 && leap) ? 29 : DAYS_IN_MONTH[month - 1];
+  }
+
+  // Days from 1970-01-01 to the given proleptic Gregorian date
+  private static long daysSinceEpoch(int year, int month, int day) {
+    long y = (month <= 2) ? year - 1 : year;
+    long era = Math.floorDiv(y, 400);
+    long yearOfEra = y - era * 400;
+    long dayOfYear = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+}
@@ -0,0 +1,54 @@
+// Page-at-a-time access to a heap.<pagesize> file through a buffer pool
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/*
+ * Pages are fetched through a BufferPool, so repeated scans or lookups against the same
+ * heap file are served from memory while the pages stay cached. Every fetchPage must be
+ * matched by an unpinPage once the caller is done with the page.
+ */
+public class HeapFile implements PageSource {
+  RandomAccessFile file;
+  BufferPool pool;
+  int pageSize;
+  int numRecordsPerPage;
+
+  public HeapFile(String datafile, int pageSize, int numFrames, BufferPool.EvictionPolicy policy)
+      throws IOException {
+    this.file = new RandomAccessFile(datafile, "r");
+    this.pool = new BufferPool(this.file.getChannel(), pageSize, numFrames, policy);
+    this.pageSize = pageSize;
+    this.numRecordsPerPage = pageSize / constants.TOTAL_SIZE;
+  }
+
+  public HeapFile(String datafile, int pageSize) throws IOException {
+    this(datafile, pageSize, constants.BUFFER_POOL_FRAMES,
+        new BufferPool.ClockPolicy(constants.BUFFER_POOL_FRAMES));
+  }
+
+  public ByteBuffer fetchPage(int pageId) throws IOException {
+    return this.pool.fetchPage(pageId);
+  }
+
+  public void unpinPage(int pageId) {
+    this.pool.unpinPage(pageId, false);
+  }
+
+  public int numPages() throws IOException {
+    return (int) (this.file.length() / this.pageSize);
+  }
+
+  public int numRecordsPerPage() {
+    return this.numRecordsPerPage;
+  }
+
+  public BufferPool bufferPool() {
+    return this.pool;
+  }
+
+  public void close() throws IOException {
+    this.file.close();
+  }
+}
@@ -0,0 +1,116 @@
+// Compares the ways of searching the keys of one tree node
+
+import java.util.*;
+
+/*
+ * Usage: java KeySearchBenchmark [rounds]
+ *
+ * For fanouts 200 and 1000, fills a node's worth of sorted keys and times routing random
+ * probes through it with the old linear scan, Arrays.binarySearch and
+ * KeySearch.upperBound, then times whole-tree lookups through BPlusTree. Before timing,
+ * the three searches must agree on every probe. Each timing is taken after a warm-up
+ * round so that the JIT has compiled the loop being measured.
+ */
+public class KeySearchBenchmark {
+  private static final int[] FANOUTS = { 200, 1000 };
+  private static final int NUM_PROBES = 1 << 20;
+  private static final int NUM_TREE_KEYS = 1000000;
+
+  // The search findLeafNode used before KeySearch
+  private static int linearScan(int[] keys, int n, int key) {
+    int i;
+    for (i = 0; i < n; i++) {
+      if (key < keys[i]) {
+        break;
+      }
+    }
+    return i;
+  }
+
+  private static int binarySearch(int[] keys, int n, int key) {
+    int index = Arrays.binarySearch(keys, 0, n, key);
+    return (index >= 0) ? index + 1 : -index - 1;
+  }
+
+  // Fails unless the three searches route every probe to the same child
+  private static void checkAgreement(int[] keys, int n, int[] probes) {
+    for (int probe : probes) {
+      int expected = linearScan(keys, n, probe);
+      if (binarySearch(keys, n, probe) != expected || KeySearch.upperBound(keys, n, probe) != expected) {
+        throw new IllegalStateException("Searches disagree on key " + probe + " at fanout " + (n + 1));
+      }
+    }
+  }
+
+  private static long time(int method, int[] keys, int n, int[] probes) {
+    // the sum is printed so the searches cannot be optimised away
+    long sum = 0;
+    long startTime = System.nanoTime();
+    for (int probe : probes) {
+      if (method == 0) {
+        sum += linearScan(keys, n, probe);
+      } else if (method == 1) {
+        sum += binarySearch(keys, n, probe);
+      } else {
+        sum += KeySearch.upperBound(keys, n, probe);
+      }
+    }
+    long elapsed = System.nanoTime() - startTime;
+    if (sum == 42) {
+      System.out.println();
+    }
+    return elapsed;
+  }
+
+  public static void main(String[] args) {
+
+    int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+    String[] names = { "linear scan", "Arrays.binarySearch", "KeySearch.upperBound" };
+    Random random = new Random(42);
+
+    for (int m : FANOUTS) {
+      // an internal node holds up to m - 1 separators
+      int n = m - 1;
+      int[] keys = new int[n];
+      for (int i = 0; i < n; i++) {
+        keys[i] = i * 16 + random.nextInt(16);
+      }
+      int[] probes = new int[NUM_PROBES];
+      for (int i = 0; i < NUM_PROBES; i++) {
+        probes[i] = random.nextInt(n * 16);
+      }
+      checkAgreement(keys, n, probes);
+
+      for (int method = 0; method < names.length; method++) {
+        time(method, keys, n, probes);
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < rounds; r++) {
+          best = Math.min(best, time(method, keys, n, probes));
+        }
+        System.out.printf("fanout %4d  %-22s %6.1f ns per node%n", m, names[method], (double) best / NUM_PROBES);
+      }
+
+      // Whole lookups, root to leaf
+      BPlusTree bpt = new BPlusTree(m, Integer.BYTES);
+      byte[] value = new byte[Integer.BYTES];
+      for (int i = 1; i <= NUM_TREE_KEYS; i++) {
+        bpt.insert(i, value);
+      }
+      for (int i = 0; i < NUM_PROBES; i++) {
+        probes[i] = 1 + random.nextInt(NUM_TREE_KEYS);
+      }
+      long best = Long.MAX_VALUE;
+      for (int r = 0; r <= rounds; r++) {
+        long startTime = System.nanoTime();
+        for (int probe : probes) {
+          bpt.search(probe, value);
+        }
+        // the first round only warms up
+        if (r > 0) {
+          best = Math.min(best, System.nanoTime() - startTime);
+        }
+      }
+      System.out.printf("fanout %4d  %-22s %6.1f ns per lookup%n", m, "BPlusTree.search", (double) best / NUM_PROBES);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+// Zero-copy access to a heap.<pagesize> file mapped into memory
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * The file is mapped read-only in segments of whole pages, each under 2GB, and pages
+ * are returned as views over the mapping. Fields are read in place at the
+ * constants.*_OFFSET positions, with no copy into an intermediate page or record array.
+ */
+public class MappedHeapFile implements PageSource {
+  RandomAccessFile file;
+  MappedByteBuffer[] segments;
+  int pageSize;
+  int pagesPerSegment;
+  int numPages;
+  int numRecordsPerPage;
+
+  public MappedHeapFile(String datafile, int pageSize) throws IOException {
+    this.file = new RandomAccessFile(datafile, "r");
+    this.pageSize = pageSize;
+    this.pagesPerSegment = Integer.MAX_VALUE / pageSize;
+    this.numPages = (int) (this.file.length() / pageSize);
+    this.numRecordsPerPage = pageSize / constants.TOTAL_SIZE;
+
+    FileChannel channel = this.file.getChannel();
+    int numSegments = (this.numPages + this.pagesPerSegment - 1) / this.pagesPerSegment;
+    this.segments = new MappedByteBuffer[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      long start = (long) i * this.pagesPerSegment * pageSize;
+      long length = (long) Math.min(this.pagesPerSegment, this.numPages - i * this.pagesPerSegment) * pageSize;
+      this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+    }
+  }
+
+  public int numPages() {
+    return this.numPages;
+  }
+
+  public int numRecordsPerPage() {
+    return this.numRecordsPerPage;
+  }
+
+  // Returns a view of the page over the mapping; nothing is copied
+  public ByteBuffer fetchPage(int pageId) {
+    MappedByteBuffer segment = this.segments[pageId / this.pagesPerSegment];
+    return segment.slice((pageId % this.pagesPerSegment) * this.pageSize, this.pageSize);
+  }
+
+  public void unpinPage(int pageId) {
+    // mapped pages are never pinned
+  }
+
+  public void close() throws IOException {
+    this.file.close();
+  }
+}
@@ -0,0 +1,441 @@
+// Compresses and decompresses single heap pages for dbload -compress
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * A page is first taken apart field by field, as a PAX page stores it, and each field
+ * is encoded by kind: id and date as deltas from the previous record packed into as few
+ * bytes as their spread needs (frame of reference), month, day and sensorname as
+ * one-byte codes into a dictionary kept with the page, and the other fields as they
+ * are. The result then goes through a small LZ77 codec in the style of LZ4, which folds
+ * away the space padding and the values repeated from record to record. Every step is
+ * exact, so a page decompresses to the same bytes it was compressed from, and a page
+ * that does not get smaller is stored as it is.
+ *
+ * Compressed page: a method byte (STORED or ENCODED) followed by the page bytes or the
+ * LZ output. Before LZ, each field is a tag byte and then:
+ * RAW          the field of every record slot in turn
+ * DELTA        width, first value, smallest delta as a long, then every later delta
+ *              less the smallest in width bytes
+ * DICTIONARY   number of entries, the entries, then one code per record slot
+ * and the bytes after the last record slot follow at the end.
+ * Instances keep scratch buffers and are not thread-safe.
+ */
+public class PageCodec {
+  public static final String SUFFIX = ".z";
+  public static final String DIRECTORY_SUFFIX = ".pages";
+
+  private static final byte STORED = 0;
+  private static final byte ENCODED = 1;
+
+  private static final int RAW = 0;
+  private static final int DELTA = 1;
+  private static final int DICTIONARY = 2;
+  // the encoding tried for each field, in PageLayout.FIELD_OFFSETS order
+  private static final int[] ENCODINGS = { RAW, DELTA, DELTA, RAW, DICTIONARY, RAW, DICTIONARY, RAW, RAW,
+      DICTIONARY, RAW };
+  private static final int MAX_DICTIONARY_SIZE = 255;
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_OFFSET = 0xffff;
+  private static final int HASH_BITS = 12;
+
+  PageLayout layout;
+  int pageSize;
+  byte[] pageBytes;
+  byte[] fields;
+  byte[] packed;
+  ByteBuffer pageView;
+  ByteBuffer fieldsView;
+  int[] hashTable = new int[1 << HASH_BITS];
+
+  public PageCodec(PageLayout layout) {
+    this.layout = layout;
+    this.pageSize = layout.pageSize;
+    this.pageBytes = new byte[this.pageSize];
+    // room for a dictionary attempt that turns out larger than the field it replaces
+    this.fields = new byte[2 * this.pageSize + 64];
+    this.packed = new byte[this.fields.length + this.fields.length / 255 + 16];
+    this.pageView = ByteBuffer.wrap(this.pageBytes);
+    this.fieldsView = ByteBuffer.wrap(this.fields);
+  }
+
+  // Largest number of bytes compress() writes for one page
+  public int maxCompressedLength() {
+    return this.pageSize + 1;
+  }
+
+  // Compresses page into out from offset 0; returns the compressed length
+  public int compress(ByteBuffer page, byte[] out) {
+
+    page.get(0, this.pageBytes, 0, this.pageSize);
+    int fieldsLength = encodeFields();
+    int packedLength = compressBlock(this.fields, fieldsLength, this.packed);
+
+    if (packedLength < this.pageSize) {
+      out[0] = ENCODED;
+      System.arraycopy(this.packed, 0, out, 1, packedLength);
+      return packedLength + 1;
+    }
+    out[0] = STORED;
+    System.arraycopy(this.pageBytes, 0, out, 1, this.pageSize);
+    return this.pageSize + 1;
+  }
+
+  // Restores the page compressed into in[offset, offset + length)
+  public void decompress(byte[] in, int offset, int length, ByteBuffer page) {
+
+    if (in[offset] == STORED) {
+      page.put(0, in, offset + 1, this.pageSize);
+      return;
+    }
+    decompressBlock(in, offset + 1, offset + length, this.fields);
+    decodeFields();
+    page.put(0, this.pageBytes, 0, this.pageSize);
+  }
+
+  // Writes the fields of pageBytes into fields; returns the number of bytes written
+  private int encodeFields() {
+
+    int numRecords = this.layout.numRecordsPerPage;
+    int position = 0;
+
+    for (int f = 0; f < ENCODINGS.length; f++) {
+      int size = PageLayout.FIELD_SIZES[f];
+      int rawEnd = position + 1 + numRecords * size;
+
+      int end = -1;
+      if (ENCODINGS[f] == DELTA) {
+        end = encodeDeltas(f, position + 1);
+      } else if (ENCODINGS[f] == DICTIONARY) {
+        end = encodeDictionary(f, position + 1);
+      }
+
+      if (end >= 0 && end < rawEnd) {
+        this.fields[position] = (byte) ENCODINGS[f];
+        position = end;
+      } else {
+        this.fields[position++] = RAW;
+        for (int i = 0; i < numRecords; i++) {
+          System.arraycopy(this.pageBytes, fieldOffset(i, f), this.fields, position, size);
+          position += size;
+        }
+      }
+    }
+
+    int tail = numRecords * constants.TOTAL_SIZE;
+    System.arraycopy(this.pageBytes, tail, this.fields, position, this.pageSize - tail);
+    return position + this.pageSize - tail;
+  }
+
+  // Undoes encodeFields, from fields back into pageBytes
+  private void decodeFields() {
+
+    int numRecords = this.layout.numRecordsPerPage;
+    int position = 0;
+
+    for (int f = 0; f < ENCODINGS.length; f++) {
+      int size = PageLayout.FIELD_SIZES[f];
+      int encoding = this.fields[position++];
+
+      if (encoding == DELTA) {
+        position = decodeDeltas(f, position);
+      } else if (encoding == DICTIONARY) {
+        position = decodeDictionary(f, position);
+      } else {
+        for (int i = 0; i < numRecords; i++) {
+          System.arraycopy(this.fields, position, this.pageBytes, fieldOffset(i, f), size);
+          position += size;
+        }
+      }
+    }
+
+    int tail = numRecords * constants.TOTAL_SIZE;
+    System.arraycopy(this.fields, position, this.pageBytes, tail, this.pageSize - tail);
+  }
+
+  /*
+   * Writes field f as deltas from position; returns the end position, or -1 if the
+   * deltas are spread too far apart to pack. Arithmetic wraps, so decoding is exact.
+   */
+  private int encodeDeltas(int f, int position) {
+
+    int numRecords = this.layout.numRecordsPerPage;
+    int size = PageLayout.FIELD_SIZES[f];
+    if (numRecords == 0) {
+      return -1;
+    }
+
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    long previous = fieldValue(0, f);
+    for (int i = 1; i < numRecords; i++) {
+      long value = fieldValue(i, f);
+      long delta = value - previous;
+      min = Math.min(min, delta);
+      max = Math.max(max, delta);
+      previous = value;
+    }
+    if (numRecords == 1) {
+      min = 0;
+      max = 0;
+    }
+
+    long spread = max - min;
+    if (spread < 0 || spread > 0xffffffffL) {
+      return -1;
+    }
+    int width = (spread == 0) ? 0 : (spread <= 0xff) ? 1 : (spread <= 0xffff) ? 2 : 4;
+
+    this.fields[position++] = (byte) width;
+    System.arraycopy(this.pageBytes, fieldOffset(0, f), this.fields, position, size);
+    position += size;
+    position = putBytes(this.fields, position, min, Long.BYTES);
+
+    previous = fieldValue(0, f);
+    for (int i = 1; i < numRecords; i++) {
+      long value = fieldValue(i, f);
+      position = putBytes(this.fields, position, value - previous - min, width);
+      previous = value;
+    }
+    return position;
+  }
+
+  private int decodeDeltas(int f, int position) {
+
+    int numRecords = this.layout.numRecordsPerPage;
+    int size = PageLayout.FIELD_SIZES[f];
+    int width = this.fields[position++];
+
+    long value = (size == Integer.BYTES) ? this.fieldsView.getInt(position) : this.fieldsView.getLong(position);
+    putValue(fieldOffset(0, f), value, size);
+    position += size;
+    long min = this.fieldsView.getLong(position);
+    position += Long.BYTES;
+
+    for (int i = 1; i < numRecords; i++) {
+      value += min + delta(position, width);
+      putValue(fieldOffset(i, f), value, size);
+      position += width;
+    }
+    return position;
+  }
+
+  // The unsigned delta of width bytes at position in fields
+  private long delta(int position, int width) {
+    switch (width) {
+      case 0:
+        return 0;
+      case 1:
+        return this.fields[position] & 0xff;
+      case 2:
+        return this.fieldsView.getShort(position) & 0xffff;
+      default:
+        return this.fieldsView.getInt(position) & 0xffffffffL;
+    }
+  }
+
+  private void putValue(int offset, long value, int size) {
+    if (size == Integer.BYTES) {
+      this.pageView.putInt(offset, (int) value);
+    } else {
+      this.pageView.putLong(offset, value);
+    }
+  }
+
+  /*
+   * Writes field f as codes into a dictionary of its distinct values from position;
+   * returns the end position, or -1 if there are more than MAX_DICTIONARY_SIZE of them.
+   */
+  private int encodeDictionary(int f, int position) {
+
+    int numRecords = this.layout.numRecordsPerPage;
+    int size = PageLayout.FIELD_SIZES[f];
+    if (numRecords == 0) {
+      return -1;
+    }
+
+    // entries go right after the count; the codes are written once the count is known
+    int entries = position + 1;
+    int numEntries = 0;
+    byte[] codes = new byte[numRecords];
+
+    for (int i = 0; i < numRecords; i++) {
+      int offset = fieldOffset(i, f);
+      int code = 0;
+      while (code < numEntries && !Arrays.equals(this.fields, entries + code * size, entries + (code + 1) * size,
+          this.pageBytes, offset, offset + size)) {
+        code++;
+      }
+      if (code == numEntries) {
+        if (numEntries == MAX_DICTIONARY_SIZE) {
+          return -1;
+        }
+        System.arraycopy(this.pageBytes, offset, this.fields, entries + numEntries * size, size);
+        numEntries++;
+      }
+      codes[i] = (byte) code;
+    }
+
+    this.fields[position] = (byte) numEntries;
+    int end = entries + numEntries * size;
+    System.arraycopy(codes, 0, this.fields, end, numRecords);
+    return end + numRecords;
+  }
+
+  private int decodeDictionary(int f, int position) {
+
+    int numRecords = this.layout.numRecordsPerPage;
+    int size = PageLayout.FIELD_SIZES[f];
+    int numEntries = this.fields[position++] & 0xff;
+    int entries = position;
+    position += numEntries * size;
+
+    for (int i = 0; i < numRecords; i++) {
+      int code = this.fields[position++] & 0xff;
+      System.arraycopy(this.fields, entries + code * size, this.pageBytes, fieldOffset(i, f), size);
+    }
+    return position;
+  }
+
+  private int fieldOffset(int i, int f) {
+    return this.layout.offset(i, PageLayout.FIELD_OFFSETS[f], PageLayout.FIELD_SIZES[f]);
+  }
+
+  // The int or long value of field f of record slot i
+  private long fieldValue(int i, int f) {
+    long value = getBytes(this.pageBytes, fieldOffset(i, f), PageLayout.FIELD_SIZES[f]);
+    // sign-extend ints, so that deltas between them never wrap
+    return (PageLayout.FIELD_SIZES[f] == Integer.BYTES) ? (int) value : value;
+  }
+
+  // Big-endian, the low count bytes of value
+  private static int putBytes(byte[] bytes, int position, long value, int count) {
+    for (int i = count - 1; i >= 0; i--) {
+      bytes[position + i] = (byte) value;
+      value >>>= 8;
+    }
+    return position + count;
+  }
+
+  private static long getBytes(byte[] bytes, int position, int count) {
+    long value = 0;
+    for (int i = 0; i < count; i++) {
+      value = (value << 8) | (bytes[position + i] & 0xff);
+    }
+    return value;
+  }
+
+  /*
+   * LZ77 over src[0, length) into dst; returns the compressed length. The output is a
+   * run of sequences, each a token byte (literal count in the high nibble, match length
+   * less MIN_MATCH in the low one, 15 meaning more length bytes follow), the literals,
+   * and for all but the last sequence a two-byte offset back to the match.
+   */
+  private int compressBlock(byte[] src, int length, byte[] dst) {
+
+    Arrays.fill(this.hashTable, -1);
+    int anchor = 0;
+    int out = 0;
+    int i = 0;
+
+    while (i + MIN_MATCH <= length) {
+      int hash = hash(src, i);
+      int candidate = this.hashTable[hash];
+      this.hashTable[hash] = i;
+
+      if (candidate < 0 || i - candidate > MAX_OFFSET || !Arrays.equals(src, candidate, candidate + MIN_MATCH,
+          src, i, i + MIN_MATCH)) {
+        i++;
+        continue;
+      }
+
+      int matchLength = MIN_MATCH;
+      while (i + matchLength < length && src[candidate + matchLength] == src[i + matchLength]) {
+        matchLength++;
+      }
+      out = putSequence(dst, out, src, anchor, i - anchor, matchLength);
+      dst[out++] = (byte) ((i - candidate) >>> 8);
+      dst[out++] = (byte) (i - candidate);
+      out = putLength(dst, out, matchLength - MIN_MATCH);
+      i += matchLength;
+      anchor = i;
+    }
+
+    // the last sequence is literals only, and ends the block
+    return putSequence(dst, out, src, anchor, length - anchor, MIN_MATCH);
+  }
+
+  private static int putSequence(byte[] dst, int out, byte[] src, int start, int numLiterals, int matchLength) {
+    int matchCode = matchLength - MIN_MATCH;
+    dst[out++] = (byte) ((Math.min(numLiterals, 15) << 4) | Math.min(matchCode, 15));
+    out = putLength(dst, out, numLiterals);
+    System.arraycopy(src, start, dst, out, numLiterals);
+    return out + numLiterals;
+  }
+
+  // The part of a length beyond the 15 that fits in its nibble, as 255s and a remainder
+  private static int putLength(byte[] dst, int out, int length) {
+    if (length < 15) {
+      return out;
+    }
+    length -= 15;
+    while (length >= 255) {
+      dst[out++] = (byte) 255;
+      length -= 255;
+    }
+    dst[out++] = (byte) length;
+    return out;
+  }
+
+  private static void decompressBlock(byte[] src, int in, int end, byte[] dst) {
+
+    int out = 0;
+    while (true) {
+      int token = src[in++] & 0xff;
+
+      int numLiterals = token >>> 4;
+      if (numLiterals == 15) {
+        int b;
+        do {
+          b = src[in++] & 0xff;
+          numLiterals += b;
+        } while (b == 255);
+      }
+      System.arraycopy(src, in, dst, out, numLiterals);
+      in += numLiterals;
+      out += numLiterals;
+      if (in >= end) {
+        return;
+      }
+
+      int offset = ((src[in] & 0xff) << 8) | (src[in + 1] & 0xff);
+      in += 2;
+      int matchLength = token & 0x0f;
+      if (matchLength == 15) {
+        int b;
+        do {
+          b = src[in++] & 0xff;
+          matchLength += b;
+        } while (b == 255);
+      }
+      matchLength += MIN_MATCH;
+
+      if (offset >= matchLength) {
+        System.arraycopy(dst, out - offset, dst, out, matchLength);
+        out += matchLength;
+      } else {
+        // byte by byte, since the match overlaps the bytes it is producing
+        for (int i = 0; i < matchLength; i++, out++) {
+          dst[out] = dst[out - offset];
+        }
+      }
+    }
+  }
+
+  private static int hash(byte[] bytes, int i) {
+    int word = (bytes[i] & 0xff) | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff) << 16 | bytes[i + 3] << 24;
+    return (word * 0x9E3779B1) >>> (32 - HASH_BITS);
+  }
+}
@@ -0,0 +1,78 @@
+// Where the fields of each record sit within a heap page
+
+import java.nio.ByteBuffer;
+
+/*
+ * Row pages (heap.<pagesize>) store whole records one after another, as dbload always
+ * has. PAX pages (pax.<pagesize>) hold the same records grouped by field: the page is
+ * cut into one block per field, in record field order, and each block holds that field
+ * for every record slot on the page. A scan that only filters on SDT_NAME or one numeric
+ * field then walks a few dense blocks instead of pulling every byte of every record
+ * through the cache. Both layouts hold pageSize / TOTAL_SIZE records and end a packed
+ * page at the first empty SDT_NAME, so only the field positions differ.
+ */
+public class PageLayout {
+  public static final String ROW_PREFIX = "heap.";
+  public static final String PAX_PREFIX = "pax.";
+
+  // every field of a record, in order
+  public static final int[] FIELD_OFFSETS = { 0, constants.ID_OFFSET, constants.DATE_OFFSET,
+      constants.YEAR_OFFSET, constants.MONTH_OFFSET, constants.MDATE_OFFSET, constants.DAY_OFFSET,
+      constants.TIME_OFFSET, constants.SENSORID_OFFSET, constants.SENSORNAME_OFFSET, constants.COUNTS_OFFSET };
+  public static final int[] FIELD_SIZES = { constants.STD_NAME_SIZE, constants.ID_SIZE, constants.DATE_SIZE,
+      constants.YEAR_SIZE, constants.MONTH_SIZE, constants.MDATE_SIZE, constants.DAY_SIZE, constants.TIME_SIZE,
+      constants.SENSORID_SIZE, constants.SENSORNAME_SIZE, constants.COUNTS_SIZE };
+
+  int pageSize;
+  int numRecordsPerPage;
+  boolean columnar;
+
+  public PageLayout(int pageSize, boolean columnar) {
+    this.pageSize = pageSize;
+    this.numRecordsPerPage = pageSize / constants.TOTAL_SIZE;
+    this.columnar = columnar;
+  }
+
+  public boolean isColumnar() {
+    return this.columnar;
+  }
+
+  // The heap file holding pages of this layout
+  public String fileName() {
+    return (this.columnar ? PAX_PREFIX : ROW_PREFIX) + this.pageSize;
+  }
+
+  // Position in the page of the field at fieldOffset (a constants.*_OFFSET) of record slot i
+  public int offset(int i, int fieldOffset, int fieldSize) {
+    if (this.columnar) {
+      // the block of a field starts after the blocks of all fields before it
+      return this.numRecordsPerPage * fieldOffset + i * fieldSize;
+    }
+    return i * constants.TOTAL_SIZE + fieldOffset;
+  }
+
+  // Whether record slot i of a packed page is past its last record
+  public boolean isEmpty(ByteBuffer page, int i) {
+    return page.get(offset(i, 0, constants.STD_NAME_SIZE)) == 0;
+  }
+
+  /*
+   * Rearranges a page of packed row-major records into this layout, in place. scratch
+   * must hold at least a page; the bytes past the last record slot are left alone.
+   */
+  public void fromRows(ByteBuffer page, byte[] scratch) {
+
+    if (!this.columnar) {
+      return;
+    }
+
+    int length = this.numRecordsPerPage * constants.TOTAL_SIZE;
+    page.get(0, scratch, 0, length);
+    for (int f = 0; f < FIELD_OFFSETS.length; f++) {
+      int block = this.numRecordsPerPage * FIELD_OFFSETS[f];
+      for (int i = 0; i < this.numRecordsPerPage; i++) {
+        page.put(block + i * FIELD_SIZES[f], scratch, i * constants.TOTAL_SIZE + FIELD_OFFSETS[f], FIELD_SIZES[f]);
+      }
+    }
+  }
+}
@@ -0,0 +1,22 @@
+// A heap file that hands out its pages as ByteBuffers
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Implemented by the buffered (HeapFile) and memory-mapped (MappedHeapFile) readers,
+ * so scans and bulk loads can read fields straight out of either kind of page at the
+ * constants.*_OFFSET positions. Every fetchPage must be matched by an unpinPage.
+ */
+public interface PageSource {
+
+  int numPages() throws IOException;
+
+  int numRecordsPerPage();
+
+  ByteBuffer fetchPage(int pageId) throws IOException;
+
+  void unpinPage(int pageId);
+
+  void close() throws IOException;
+}
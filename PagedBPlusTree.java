@@ -0,0 +1,1109 @@
+// A disk-resident B+ tree stored in fixed-size index pages
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/*
+ * Index file layout (every page is pageSize bytes):
+ * page 0 = meta page: magic, page size, value size, root page id, first leaf page id,
+ *          number of pages, height, number of entries, and for an index built from a
+ *          heap file the heap page and slot of the next record to index and the number
+ *          of heap records indexed
+ * page n = node page with a 16 byte header: type, count, right sibling, left sibling
+ *
+ * Leaf pages hold count keys followed by count values of valueSize bytes.
+ * Internal pages hold count child page ids followed by count - 1 separator keys.
+ * Pages are accessed through a BufferPool, so only the pages on the path of a search
+ * are faulted in and memory use is bounded by the number of frames, not the index size.
+ *
+ * With the write-ahead log enabled, an insert that fits in its leaf stages one redo record
+ * of the new slot and one of the entry count. An insert that splits keeps every page it
+ * changes pinned until it is complete and then stages their images, and the meta page.
+ * Before the buffer pool writes back a page, the log gets the page's image if it holds
+ * redo records for it and is forced if it has anything staged for it, so the index file
+ * never holds a change the log could not redo. open() replays a log left behind by a
+ * crash before reading the tree.
+ *
+ * dbload appends to the heap file, so refresh() picks up from the last heap record indexed
+ * and adds only the new records, along the right edge of the tree.
+ */
+public class PagedBPlusTree {
+  private static final int MAGIC = 0x42505431;
+  private static final int META_PAGE_ID = 0;
+  private static final int NO_PAGE = -1;
+
+  private static final int LEAF = 0;
+  private static final int INTERNAL = 1;
+
+  private static final int TYPE_OFFSET = 0;
+  private static final int COUNT_OFFSET = 4;
+  private static final int RIGHT_SIBLING_OFFSET = 8;
+  private static final int LEFT_SIBLING_OFFSET = 12;
+  private static final int NODE_HEADER_SIZE = 16;
+
+  private static final int MAGIC_OFFSET = 0;
+  private static final int PAGE_SIZE_OFFSET = 4;
+  private static final int VALUE_SIZE_OFFSET = 8;
+  private static final int ROOT_OFFSET = 12;
+  private static final int FIRST_LEAF_OFFSET = 16;
+  private static final int NUM_PAGES_OFFSET = 20;
+  private static final int HEIGHT_OFFSET = 24;
+  private static final int NUM_ENTRIES_OFFSET = 28;
+  private static final int HEAP_PAGES_OFFSET = 36;
+  private static final int HEAP_RECORDS_OFFSET = 40;
+  private static final int HEAP_SLOT_OFFSET = 48;
+
+  RandomAccessFile file;
+  FileChannel channel;
+  BufferPool pool;
+  int pageSize;
+  int valueSize;
+  int leafCapacity;
+  int internalCapacity;
+  int rootPageId;
+  int firstLeafPageId;
+  int numPages;
+  int height;
+  long numEntries;
+  // the next heap record to index is at heapSlot in page heapPages; heapRecords are indexed
+  int heapPages;
+  int heapSlot;
+  long heapRecords;
+  String indexFile;
+  WriteAheadLog log;
+  int groupSize;
+  int opsInBatch;
+  // pages changed by the insert in progress, held pinned until it completes
+  ArrayList<Integer> heldPageIds = new ArrayList<Integer>();
+  // page ids from the root down to the rightmost leaf, kept while only appends change the tree
+  int[] rightEdge;
+
+  private PagedBPlusTree(RandomAccessFile file, int pageSize, int valueSize, int numFrames,
+      BufferPool.EvictionPolicy policy) {
+    this.file = file;
+    this.channel = file.getChannel();
+    this.pool = new BufferPool(this.channel, pageSize, numFrames, policy);
+    this.pageSize = pageSize;
+    this.valueSize = valueSize;
+    this.leafCapacity = (pageSize - NODE_HEADER_SIZE) / (Integer.BYTES + valueSize);
+    this.internalCapacity = (pageSize - NODE_HEADER_SIZE + Integer.BYTES) / (2 * Integer.BYTES);
+
+    if (this.leafCapacity < 2 || this.internalCapacity < 3) {
+      throw new IllegalArgumentException("Page size " + pageSize + " is too small for values of " + valueSize + " bytes");
+    }
+  }
+
+  // Creates a new index file holding an empty tree
+  public static PagedBPlusTree create(String indexFile, int pageSize, int valueSize) throws IOException {
+
+    RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+    file.setLength(0);
+    PagedBPlusTree tree = new PagedBPlusTree(file, pageSize, valueSize, constants.BUFFER_POOL_FRAMES,
+        new BufferPool.ClockPolicy(constants.BUFFER_POOL_FRAMES));
+    tree.indexFile = indexFile;
+
+    tree.numPages = 1;
+    tree.rootPageId = tree.allocatePage();
+    tree.firstLeafPageId = tree.rootPageId;
+    tree.height = 1;
+    tree.newNodePage(tree.rootPageId, LEAF);
+    tree.release(tree.rootPageId, true);
+    tree.writeMeta();
+
+    return tree;
+  }
+
+  // Opens an existing index file with the default buffer pool
+  public static PagedBPlusTree open(String indexFile) throws IOException {
+    return open(indexFile, constants.BUFFER_POOL_FRAMES, new BufferPool.ClockPolicy(constants.BUFFER_POOL_FRAMES));
+  }
+
+  /*
+   * Opens an existing index file, caching up to numFrames pages chosen by policy. If a
+   * write-ahead log was left behind, its committed batches are replayed into the file first.
+   */
+  public static PagedBPlusTree open(String indexFile, int numFrames, BufferPool.EvictionPolicy policy)
+      throws IOException {
+
+    RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+    ByteBuffer header = ByteBuffer.allocate(HEAP_SLOT_OFFSET + Integer.BYTES);
+    file.getChannel().read(header, 0);
+
+    if (header.getInt(MAGIC_OFFSET) != MAGIC) {
+      file.close();
+      throw new IOException("Not an index file: " + indexFile);
+    }
+
+    PagedBPlusTree tree = new PagedBPlusTree(file, header.getInt(PAGE_SIZE_OFFSET), header.getInt(VALUE_SIZE_OFFSET),
+        numFrames, policy);
+
+    File logFile = new File(logFileName(indexFile));
+    if (logFile.exists()) {
+      WriteAheadLog.replay(logFile.getPath(), file.getChannel(), tree.pageSize, tree::redo);
+      logFile.delete();
+      header.clear();
+      file.getChannel().read(header, 0);
+    }
+
+    tree.rootPageId = header.getInt(ROOT_OFFSET);
+    tree.firstLeafPageId = header.getInt(FIRST_LEAF_OFFSET);
+    tree.numPages = header.getInt(NUM_PAGES_OFFSET);
+    tree.height = header.getInt(HEIGHT_OFFSET);
+    tree.numEntries = header.getLong(NUM_ENTRIES_OFFSET);
+    tree.heapPages = header.getInt(HEAP_PAGES_OFFSET);
+    tree.heapSlot = header.getInt(HEAP_SLOT_OFFSET);
+    tree.heapRecords = header.getLong(HEAP_RECORDS_OFFSET);
+    tree.indexFile = indexFile;
+
+    return tree;
+  }
+
+  /*
+   * Builds an index file bottom-up from the records of a heap file, keyed by record id
+   * in load order starting at 1. Leaves are written out as soon as they fill, so only
+   * one page id and minimum key per node of the level being built is kept in memory.
+   */
+  public static PagedBPlusTree build(String indexFile, String heapFile, int pageSize, double fillFactor)
+      throws IOException {
+
+    if (fillFactor <= 0 || fillFactor > 1) {
+      throw new IllegalArgumentException("Fill factor must be in (0, 1]: " + fillFactor);
+    }
+
+    RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+    file.setLength(0);
+    PagedBPlusTree tree = new PagedBPlusTree(file, pageSize, constants.TOTAL_SIZE, constants.BUFFER_POOL_FRAMES,
+        new BufferPool.ClockPolicy(constants.BUFFER_POOL_FRAMES));
+    tree.indexFile = indexFile;
+    tree.numPages = 1;
+
+    int leafFill = Math.max(1, (int) (fillFactor * tree.leafCapacity));
+    int numRecordsPerPage = pageSize / constants.TOTAL_SIZE;
+    int[] levelPages = new int[16];
+    int[] levelMinKeys = new int[16];
+    int levelSize = 0;
+
+    ByteBuffer leaf = null;
+    int leafPageId = NO_PAGE;
+    int recordId = 0;
+    byte[] page = new byte[pageSize];
+    RandomAccessFile heap = null;
+
+    try {
+      heap = new RandomAccessFile(heapFile, "r");
+
+      // until the end of the binary file is reached
+      while (heap.read(page) != -1) {
+        tree.heapPages++;
+        for (int i = 0; i < numRecordsPerPage; i++) {
+          // an empty SdtName marks the end of the records in a packed page
+          if (page[i * constants.TOTAL_SIZE] == 0) {
+            break;
+          }
+
+          recordId++;
+          if (leaf == null || leaf.getInt(COUNT_OFFSET) == leafFill) {
+            int newPageId = tree.allocatePage();
+            if (leaf != null) {
+              // the previous leaf stays pinned until its right sibling is known
+              leaf.putInt(RIGHT_SIBLING_OFFSET, newPageId);
+              tree.release(leafPageId, true);
+            }
+            leaf = tree.newNodePage(newPageId, LEAF);
+            leaf.putInt(LEFT_SIBLING_OFFSET, leafPageId);
+            leafPageId = newPageId;
+
+            if (levelSize == levelPages.length) {
+              levelPages = Arrays.copyOf(levelPages, levelSize * 2);
+              levelMinKeys = Arrays.copyOf(levelMinKeys, levelSize * 2);
+            }
+            levelPages[levelSize] = leafPageId;
+            levelMinKeys[levelSize] = recordId;
+            levelSize++;
+          }
+
+          int count = leaf.getInt(COUNT_OFFSET);
+          leaf.putInt(tree.leafKeyOffset(count), recordId);
+          System.arraycopy(page, i * constants.TOTAL_SIZE, leaf.array(), tree.leafValueOffset(count),
+              constants.TOTAL_SIZE);
+          leaf.putInt(COUNT_OFFSET, count + 1);
+        }
+      }
+    } catch (IOException e) {
+      // do not leave a half-built index behind
+      file.close();
+      new File(indexFile).delete();
+      throw e;
+    } finally {
+      if (heap != null) {
+        heap.close();
+      }
+    }
+
+    if (leaf == null) {
+      leafPageId = tree.allocatePage();
+      tree.newNodePage(leafPageId, LEAF);
+      levelPages[levelSize++] = leafPageId;
+    }
+    tree.release(leafPageId, true);
+    tree.firstLeafPageId = levelPages[0];
+    tree.numEntries = recordId;
+    tree.heapRecords = recordId;
+    tree.height = 1;
+
+    // Build each internal level from the page ids and minimum keys of the level below
+    int internalFill = Math.max(3, (int) (fillFactor * tree.internalCapacity));
+    while (levelSize > 1) {
+
+      int groups = (levelSize + internalFill - 1) / internalFill;
+      int[] parentPages = new int[groups];
+      int[] parentMinKeys = new int[groups];
+      int start = 0;
+
+      for (int g = 0; g < groups; g++) {
+        int size = Math.min(internalFill, levelSize - start);
+        // never leave a single child for the last node of the level
+        if (g == groups - 2 && levelSize - start - size == 1) {
+          size--;
+        }
+
+        parentPages[g] = tree.allocatePage();
+        parentMinKeys[g] = levelMinKeys[start];
+
+        ByteBuffer node = tree.newNodePage(parentPages[g], INTERNAL);
+        for (int j = 0; j < size; j++) {
+          node.putInt(tree.childOffset(j), levelPages[start + j]);
+          if (j > 0) {
+            node.putInt(tree.internalKeyOffset(j - 1), levelMinKeys[start + j]);
+          }
+        }
+        node.putInt(COUNT_OFFSET, size);
+        tree.release(parentPages[g], true);
+        start += size;
+      }
+
+      levelPages = parentPages;
+      levelMinKeys = parentMinKeys;
+      levelSize = groups;
+      tree.height++;
+    }
+
+    tree.rootPageId = levelPages[0];
+    tree.writeMeta();
+    return tree;
+  }
+
+  public byte[] search(int key) throws IOException {
+    byte[] buffer = new byte[this.valueSize];
+    return search(key, buffer) ? buffer : null;
+  }
+
+  // Copies the value for key into buffer; returns false if key is absent
+  public boolean search(int key, byte[] buffer) throws IOException {
+
+    int leafPageId = findLeafPage(key);
+    ByteBuffer leaf = fetch(leafPageId);
+    try {
+      int index = leafSearch(leaf, key);
+      if (index < 0) {
+        return false;
+      }
+
+      System.arraycopy(leaf.array(), leafValueOffset(index), buffer, 0, this.valueSize);
+      return true;
+    } finally {
+      release(leafPageId, false);
+    }
+  }
+
+  public ArrayList<byte[]> search(int lowerBound, int upperBound) throws IOException {
+
+    ArrayList<byte[]> values = new ArrayList<byte[]>();
+    if (lowerBound > upperBound) {
+      return values;
+    }
+
+    /*
+     * Seek to the leftmost leaf that can hold lowerBound, then follow right siblings.
+     * Duplicates of lowerBound may sit left of an equal separator, so the descent and
+     * the leaf search both take the first position >= lowerBound; a scan starting at
+     * the end of a leaf carries on in its right sibling.
+     */
+    int leafPageId = findLeafPageLowerBound(lowerBound);
+    ByteBuffer leaf = fetch(leafPageId);
+    int index = leafLowerBound(leaf, lowerBound);
+
+    while (true) {
+      int count = leaf.getInt(COUNT_OFFSET);
+      for (int i = index; i < count; i++) {
+        if (leaf.getInt(leafKeyOffset(i)) > upperBound) {
+          release(leafPageId, false);
+          return values;
+        }
+        int offset = leafValueOffset(i);
+        values.add(Arrays.copyOfRange(leaf.array(), offset, offset + this.valueSize));
+      }
+
+      int next = leaf.getInt(RIGHT_SIBLING_OFFSET);
+      release(leafPageId, false);
+      if (next == NO_PAGE) {
+        return values;
+      }
+      leafPageId = next;
+      leaf = fetch(leafPageId);
+      index = 0;
+    }
+  }
+
+  public void insert(int key, byte[] value) throws IOException {
+
+    if (value.length != this.valueSize) {
+      throw new IllegalArgumentException("Value must be " + this.valueSize + " bytes, got " + value.length);
+    }
+
+    this.rightEdge = null;
+    insertIntoTree(key, value);
+    if (this.log != null) {
+      endLoggedOperation();
+    }
+  }
+
+  // Inserts key, which must be at least as large as every key in the tree, at the right edge
+  public void append(int key, byte[] value) throws IOException {
+
+    if (value.length != this.valueSize) {
+      throw new IllegalArgumentException("Value must be " + this.valueSize + " bytes, got " + value.length);
+    }
+
+    append(key, value, 0);
+  }
+
+  /*
+   * Brings an index built from heapFile up to date after dbload has appended to it. The
+   * heap is read from the record after the last one indexed and the new records are
+   * appended with the next record ids, so the work done follows the size of the new
+   * batch, not the heap. The heap position goes into the meta page with every record
+   * appended, so a refresh that was cut short resumes right after its last record, also
+   * on an index that holds pairs added by insert. Returns the number of records added.
+   */
+  public long refresh(String heapFile) throws IOException {
+
+    if (this.valueSize != constants.TOTAL_SIZE) {
+      throw new IllegalStateException("Index does not hold heap records");
+    }
+
+    int numRecordsPerPage = this.pageSize / constants.TOTAL_SIZE;
+    byte[] page = new byte[this.pageSize];
+    long added = 0;
+    RandomAccessFile heap = new RandomAccessFile(heapFile, "r");
+
+    try {
+      long numHeapPages = heap.length() / this.pageSize;
+      if (numHeapPages < this.heapPages) {
+        throw new IOException("Heap file " + heapFile + " is shorter than its index");
+      }
+
+      heap.seek((long) this.heapPages * this.pageSize);
+      while (this.heapPages < numHeapPages) {
+        heap.readFully(page);
+        // an empty SdtName marks the end of the records in a packed page
+        while (this.heapSlot < numRecordsPerPage && page[this.heapSlot * constants.TOTAL_SIZE] != 0) {
+          appendToTree((int) (this.heapRecords + 1), page, this.heapSlot * constants.TOTAL_SIZE);
+          this.heapRecords++;
+          this.heapSlot++;
+          if (this.log != null) {
+            endLoggedOperation();
+          }
+          added++;
+        }
+        this.heapPages++;
+        this.heapSlot = 0;
+      }
+    } finally {
+      heap.close();
+    }
+
+    updateMeta();
+    return added;
+  }
+
+  private void append(int key, byte[] value, int valueOffset) throws IOException {
+    appendToTree(key, value, valueOffset);
+    if (this.log != null) {
+      endLoggedOperation();
+    }
+  }
+
+  /*
+   * Adds the pair at the end of the rightmost leaf, reached through the remembered right
+   * edge without any key comparisons. A full node is not split in half: the new pair
+   * starts a new right node, so nodes left behind stay packed as a bulk load leaves them.
+   */
+  private void appendToTree(int key, byte[] value, int valueOffset) throws IOException {
+
+    if (this.rightEdge == null) {
+      this.rightEdge = findRightEdge();
+    }
+
+    int depth = this.height - 1;
+    int pageId = this.rightEdge[depth];
+    ByteBuffer leaf = fetch(pageId);
+    int count = leaf.getInt(COUNT_OFFSET);
+
+    if (count > 0 && leaf.getInt(leafKeyOffset(count - 1)) > key) {
+      release(pageId, false);
+      throw new IllegalArgumentException("Key " + key + " is smaller than the largest key in the tree");
+    }
+
+    this.numEntries++;
+    if (count < this.leafCapacity) {
+      leafInsertAt(leaf, count, key, value, valueOffset);
+      releaseLeafInsert(pageId, leaf, count);
+      return;
+    }
+
+    int newLeafId = allocatePage();
+    ByteBuffer newLeaf = newNodePage(newLeafId, LEAF);
+    leafInsertAt(newLeaf, 0, key, value, valueOffset);
+    newLeaf.putInt(LEFT_SIBLING_OFFSET, pageId);
+    leaf.putInt(RIGHT_SIBLING_OFFSET, newLeafId);
+    release(pageId, true);
+    release(newLeafId, true);
+    this.rightEdge[depth] = newLeafId;
+
+    int separator = key;
+    int newChild = newLeafId;
+    while (depth > 0) {
+      depth--;
+      int parentId = this.rightEdge[depth];
+      ByteBuffer parent = fetch(parentId);
+      int parentCount = parent.getInt(COUNT_OFFSET);
+
+      if (parentCount < this.internalCapacity) {
+        internalInsertAt(parent, parentCount, separator, newChild);
+        release(parentId, true);
+        updateMeta();
+        return;
+      }
+
+      // the new right node takes the parent's last child along, so it never has just one
+      int newNodeId = allocatePage();
+      ByteBuffer node = newNodePage(newNodeId, INTERNAL);
+      node.putInt(childOffset(0), parent.getInt(childOffset(parentCount - 1)));
+      node.putInt(childOffset(1), newChild);
+      node.putInt(internalKeyOffset(0), separator);
+      node.putInt(COUNT_OFFSET, 2);
+      separator = parent.getInt(internalKeyOffset(parentCount - 2));
+      parent.putInt(COUNT_OFFSET, parentCount - 1);
+      release(parentId, true);
+      release(newNodeId, true);
+      this.rightEdge[depth] = newNodeId;
+      newChild = newNodeId;
+    }
+
+    // The root was full, so the tree grows by one level
+    int newRootId = allocatePage();
+    ByteBuffer newRoot = newNodePage(newRootId, INTERNAL);
+    newRoot.putInt(childOffset(0), this.rootPageId);
+    newRoot.putInt(childOffset(1), newChild);
+    newRoot.putInt(internalKeyOffset(0), separator);
+    newRoot.putInt(COUNT_OFFSET, 2);
+    release(newRootId, true);
+
+    this.rootPageId = newRootId;
+    this.height++;
+    int[] path = new int[this.height];
+    path[0] = newRootId;
+    System.arraycopy(this.rightEdge, 0, path, 1, this.rightEdge.length);
+    this.rightEdge = path;
+    updateMeta();
+  }
+
+  /*
+   * Starts logging every insert to index.<pagesize>.wal. Inserts are committed to the log
+   * in groups of groupSize, or earlier by commit(); a crash loses at most the inserts
+   * since the last commit, and never leaves the tree half updated.
+   */
+  public void enableWriteAheadLog(int groupSize) throws IOException {
+
+    if (groupSize < 1) {
+      throw new IllegalArgumentException("Group size must be at least 1");
+    }
+    if (this.log != null) {
+      return;
+    }
+
+    // start from a checkpoint, so the log only needs to cover later changes
+    this.pool.flushAll();
+    writeMeta();
+    this.channel.force(true);
+
+    this.log = new WriteAheadLog(logFileName(this.indexFile), this.pageSize);
+    this.groupSize = groupSize;
+    this.opsInBatch = 0;
+    this.pool.setWriteHook((pageId, page) -> {
+      if (this.log.needsImage(pageId)) {
+        this.log.logPage(pageId, page);
+      }
+      if (this.log.isStaged(pageId)) {
+        this.log.commit();
+        this.opsInBatch = 0;
+      }
+    });
+  }
+
+  // Forces the inserts logged so far to disk
+  public void commit() throws IOException {
+    if (this.log != null) {
+      this.log.commit();
+      this.opsInBatch = 0;
+    }
+  }
+
+  /*
+   * Writes every cached page back to the index file and empties the log, so recovery
+   * never has to replay more than the changes since the last checkpoint.
+   */
+  public void checkpoint() throws IOException {
+    commit();
+    this.pool.flushAll();
+    writeMeta();
+    this.channel.force(true);
+    if (this.log != null) {
+      this.log.truncate();
+    }
+  }
+
+  private void insertIntoTree(int key, byte[] value) throws IOException {
+
+    // Descend to the leaf, remembering the internal pages and child slots on the way
+    int[] pathPages = new int[this.height];
+    int[] pathSlots = new int[this.height];
+    int depth = 0;
+    int pageId = this.rootPageId;
+    ByteBuffer page = fetch(pageId);
+
+    while (page.getInt(TYPE_OFFSET) == INTERNAL) {
+      int slot = childIndex(page, key);
+      pathPages[depth] = pageId;
+      pathSlots[depth] = slot;
+      depth++;
+      int childPageId = page.getInt(childOffset(slot));
+      release(pageId, false);
+      pageId = childPageId;
+      page = fetch(pageId);
+    }
+
+    int count = page.getInt(COUNT_OFFSET);
+    int position = leafInsertionPoint(page, key);
+    this.numEntries++;
+
+    if (count < this.leafCapacity) {
+      leafInsertAt(page, position, key, value, 0);
+      releaseLeafInsert(pageId, page, position);
+      return;
+    }
+
+    // Leaf is full: split it and push the first key of the new right leaf upwards
+    int separator = splitLeafPage(pageId, page, position, key, value);
+    int newChild = page.getInt(RIGHT_SIBLING_OFFSET);
+    release(pageId, true);
+
+    while (depth > 0) {
+      depth--;
+      int parentId = pathPages[depth];
+      ByteBuffer parent = fetch(parentId);
+
+      if (parent.getInt(COUNT_OFFSET) < this.internalCapacity) {
+        internalInsertAt(parent, pathSlots[depth] + 1, separator, newChild);
+        release(parentId, true);
+        updateMeta();
+        return;
+      }
+
+      int[] pushed = splitInternalPage(parentId, parent, pathSlots[depth] + 1, separator, newChild);
+      release(parentId, true);
+      separator = pushed[0];
+      newChild = pushed[1];
+    }
+
+    // The root split, so the tree grows by one level
+    int newRootId = allocatePage();
+    ByteBuffer newRoot = newNodePage(newRootId, INTERNAL);
+    newRoot.putInt(childOffset(0), this.rootPageId);
+    newRoot.putInt(childOffset(1), newChild);
+    newRoot.putInt(internalKeyOffset(0), separator);
+    newRoot.putInt(COUNT_OFFSET, 2);
+    release(newRootId, true);
+
+    this.rootPageId = newRootId;
+    this.height++;
+    updateMeta();
+  }
+
+  public long size() {
+    return this.numEntries;
+  }
+
+  public BufferPool bufferPool() {
+    return this.pool;
+  }
+
+  public void close() throws IOException {
+    if (this.log != null) {
+      checkpoint();
+      this.log.close();
+      new File(logFileName(this.indexFile)).delete();
+      this.log = null;
+    } else {
+      this.pool.flushAll();
+      writeMeta();
+      this.channel.force(true);
+    }
+    this.file.close();
+  }
+
+  private int allocatePage() {
+    return this.numPages++;
+  }
+
+  // Number of separator keys <= key, i.e. the slot of the child that covers key
+  private int childIndex(ByteBuffer page, int key) {
+    int low = 0;
+    int high = page.getInt(COUNT_OFFSET) - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (page.getInt(internalKeyOffset(mid)) <= key) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  // Number of separator keys < key, i.e. the leftmost child that can hold key
+  private int childIndexLowerBound(ByteBuffer page, int key) {
+    int low = 0;
+    int high = page.getInt(COUNT_OFFSET) - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (page.getInt(internalKeyOffset(mid)) < key) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private int childOffset(int index) {
+    return NODE_HEADER_SIZE + index * Integer.BYTES;
+  }
+
+  private ByteBuffer fetch(int pageId) throws IOException {
+    return this.pool.fetchPage(pageId);
+  }
+
+  // Page ids of the last child at each level, from the root down to the rightmost leaf
+  private int[] findRightEdge() throws IOException {
+    int[] path = new int[this.height];
+    int pageId = this.rootPageId;
+    for (int depth = 0; ; depth++) {
+      path[depth] = pageId;
+      ByteBuffer page = fetch(pageId);
+      boolean internal = page.getInt(TYPE_OFFSET) == INTERNAL;
+      int childPageId = internal ? page.getInt(childOffset(page.getInt(COUNT_OFFSET) - 1)) : NO_PAGE;
+      release(pageId, false);
+      if (!internal) {
+        return path;
+      }
+      pageId = childPageId;
+    }
+  }
+
+  private int findLeafPage(int key) throws IOException {
+    int pageId = this.rootPageId;
+    ByteBuffer page = fetch(pageId);
+    while (page.getInt(TYPE_OFFSET) == INTERNAL) {
+      int childPageId = page.getInt(childOffset(childIndex(page, key)));
+      release(pageId, false);
+      pageId = childPageId;
+      page = fetch(pageId);
+    }
+    release(pageId, false);
+    return pageId;
+  }
+
+  private int findLeafPageLowerBound(int key) throws IOException {
+    int pageId = this.rootPageId;
+    ByteBuffer page = fetch(pageId);
+    while (page.getInt(TYPE_OFFSET) == INTERNAL) {
+      int childPageId = page.getInt(childOffset(childIndexLowerBound(page, key)));
+      release(pageId, false);
+      pageId = childPageId;
+      page = fetch(pageId);
+    }
+    release(pageId, false);
+    return pageId;
+  }
+
+  // Shifts children and keys right to make room for child at index with key on its left
+  private void internalInsertAt(ByteBuffer page, int index, int key, int child) {
+    int count = page.getInt(COUNT_OFFSET);
+    byte[] bytes = page.array();
+    System.arraycopy(bytes, childOffset(index), bytes, childOffset(index + 1), (count - index) * Integer.BYTES);
+    System.arraycopy(bytes, internalKeyOffset(index - 1), bytes, internalKeyOffset(index),
+        (count - index) * Integer.BYTES);
+    page.putInt(childOffset(index), child);
+    page.putInt(internalKeyOffset(index - 1), key);
+    page.putInt(COUNT_OFFSET, count + 1);
+  }
+
+  private int internalKeyOffset(int index) {
+    return NODE_HEADER_SIZE + this.internalCapacity * Integer.BYTES + index * Integer.BYTES;
+  }
+
+  // First slot holding a key greater than key, so duplicates keep their insertion order
+  private int leafInsertionPoint(ByteBuffer page, int key) {
+    int low = 0;
+    int high = page.getInt(COUNT_OFFSET);
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (page.getInt(leafKeyOffset(mid)) <= key) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  // Shifts the pairs from index onwards right and writes the new pair from value[valueOffset]
+  private void leafInsertAt(ByteBuffer page, int index, int key, byte[] value, int valueOffset) {
+    int count = page.getInt(COUNT_OFFSET);
+    byte[] bytes = page.array();
+    System.arraycopy(bytes, leafKeyOffset(index), bytes, leafKeyOffset(index + 1), (count - index) * Integer.BYTES);
+    System.arraycopy(bytes, leafValueOffset(index), bytes, leafValueOffset(index + 1),
+        (count - index) * this.valueSize);
+    page.putInt(leafKeyOffset(index), key);
+    System.arraycopy(value, valueOffset, bytes, leafValueOffset(index), this.valueSize);
+    page.putInt(COUNT_OFFSET, count + 1);
+  }
+
+  // First slot holding a key >= key, or count if there is none
+  private int leafLowerBound(ByteBuffer page, int key) {
+    int low = 0;
+    int high = page.getInt(COUNT_OFFSET);
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (page.getInt(leafKeyOffset(mid)) < key) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private int leafKeyOffset(int index) {
+    return NODE_HEADER_SIZE + index * Integer.BYTES;
+  }
+
+  // Same contract as Arrays.binarySearch over the keys of a leaf page
+  private int leafSearch(ByteBuffer page, int key) {
+    int low = 0;
+    int high = page.getInt(COUNT_OFFSET) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midKey = page.getInt(leafKeyOffset(mid));
+      if (midKey < key) {
+        low = mid + 1;
+      } else if (midKey > key) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private int leafValueOffset(int index) {
+    return NODE_HEADER_SIZE + this.leafCapacity * Integer.BYTES + index * this.valueSize;
+  }
+
+  // Pins a fresh frame for a newly allocated page and writes an empty node header
+  private ByteBuffer newNodePage(int pageId, int type) throws IOException {
+    ByteBuffer page = this.pool.newPage(pageId);
+    page.putInt(TYPE_OFFSET, type);
+    page.putInt(COUNT_OFFSET, 0);
+    page.putInt(RIGHT_SIBLING_OFFSET, NO_PAGE);
+    page.putInt(LEFT_SIBLING_OFFSET, NO_PAGE);
+    return page;
+  }
+
+  private void release(int pageId, boolean dirty) {
+    if (dirty && this.log != null) {
+      // stays pinned, and so out of the file, until the insert has been logged
+      this.heldPageIds.add(pageId);
+      return;
+    }
+    this.pool.unpinPage(pageId, dirty);
+  }
+
+  /*
+   * Releases a leaf whose only change is the pair just put at index. With the log enabled
+   * it stages a redo record of that slot instead of holding the page for its image.
+   */
+  private void releaseLeafInsert(int pageId, ByteBuffer leaf, int index) {
+    if (this.log != null) {
+      ByteBuffer record = this.log.logRecord(pageId, 2 * Integer.BYTES + this.valueSize);
+      record.putInt(index);
+      record.putInt(leaf.getInt(leafKeyOffset(index)));
+      record.put(leaf.array(), leafValueOffset(index), this.valueSize);
+    }
+    this.pool.unpinPage(pageId, true);
+  }
+
+  /*
+   * Stages what the finished insert changed and unpins its pages: the images of the pages
+   * a split changed and the meta page, or just the new entry count and heap position if
+   * nothing split.
+   */
+  private void endLoggedOperation() throws IOException {
+
+    if (this.heldPageIds.isEmpty()) {
+      ByteBuffer record = this.log.logRecord(META_PAGE_ID, 2 * Long.BYTES + 2 * Integer.BYTES);
+      record.putLong(this.numEntries);
+      record.putInt(this.heapPages);
+      record.putInt(this.heapSlot);
+      record.putLong(this.heapRecords);
+    } else {
+      for (int i = 0; i < this.heldPageIds.size(); i++) {
+        int pageId = this.heldPageIds.get(i);
+        // the page is still pinned, so fetching it again is a hit
+        this.log.logPage(pageId, fetch(pageId));
+        this.pool.unpinPage(pageId, false);
+        this.pool.unpinPage(pageId, true);
+      }
+      this.heldPageIds.clear();
+      this.log.logPage(META_PAGE_ID, metaPage());
+    }
+
+    this.opsInBatch++;
+    if (this.opsInBatch >= this.groupSize) {
+      commit();
+    }
+  }
+
+  // Redoes a record staged by releaseLeafInsert or endLoggedOperation on a copy of its page
+  private void redo(int pageId, ByteBuffer page, ByteBuffer record) {
+    if (pageId == META_PAGE_ID) {
+      page.putLong(NUM_ENTRIES_OFFSET, record.getLong());
+      page.putInt(HEAP_PAGES_OFFSET, record.getInt());
+      page.putInt(HEAP_SLOT_OFFSET, record.getInt());
+      page.putLong(HEAP_RECORDS_OFFSET, record.getLong());
+      return;
+    }
+    int index = record.getInt();
+    int key = record.getInt();
+    leafInsertAt(page, index, key, record.array(), record.arrayOffset() + record.position());
+  }
+
+  private static String logFileName(String indexFile) {
+    return indexFile + ".wal";
+  }
+
+  /*
+   * Splits the overfull internal page around its middle key. The new right page takes
+   * the upper half of the children; returns {separator pushed up, new right page id}.
+   */
+  private int[] splitInternalPage(int pageId, ByteBuffer page, int index, int key, int child) throws IOException {
+
+    int count = page.getInt(COUNT_OFFSET);
+    int[] children = new int[count + 1];
+    int[] keys = new int[count];
+    for (int i = 0, c = 0; c < count + 1; c++) {
+      children[c] = (c == index) ? child : page.getInt(childOffset(i++));
+    }
+    for (int i = 0, k = 0; k < count; k++) {
+      keys[k] = (k == index - 1) ? key : page.getInt(internalKeyOffset(i++));
+    }
+
+    int leftCount = (count + 2) / 2;
+    int rightPageId = allocatePage();
+    ByteBuffer right = newNodePage(rightPageId, INTERNAL);
+    for (int c = 0; c < count + 1; c++) {
+      if (c < leftCount) {
+        page.putInt(childOffset(c), children[c]);
+      } else {
+        right.putInt(childOffset(c - leftCount), children[c]);
+      }
+    }
+    for (int k = 0; k < count; k++) {
+      if (k < leftCount - 1) {
+        page.putInt(internalKeyOffset(k), keys[k]);
+      } else if (k > leftCount - 1) {
+        right.putInt(internalKeyOffset(k - leftCount), keys[k]);
+      }
+    }
+    page.putInt(COUNT_OFFSET, leftCount);
+    right.putInt(COUNT_OFFSET, count + 1 - leftCount);
+    release(rightPageId, true);
+
+    return new int[] { keys[leftCount - 1], rightPageId };
+  }
+
+  /*
+   * Splits a full leaf page while inserting key at position. The upper half moves to a
+   * new right sibling, which is linked into the leaf chain; returns its first key.
+   */
+  private int splitLeafPage(int pageId, ByteBuffer page, int position, int key, byte[] value) throws IOException {
+
+    int count = page.getInt(COUNT_OFFSET);
+    int leftCount = (count + 1) / 2;
+    int rightPageId = allocatePage();
+    ByteBuffer right = newNodePage(rightPageId, LEAF);
+    byte[] bytes = page.array();
+
+    if (position < leftCount) {
+      // new pair lands in the left half: move one more pair across first
+      int moved = count - (leftCount - 1);
+      System.arraycopy(bytes, leafKeyOffset(leftCount - 1), right.array(), leafKeyOffset(0), moved * Integer.BYTES);
+      System.arraycopy(bytes, leafValueOffset(leftCount - 1), right.array(), leafValueOffset(0),
+          moved * this.valueSize);
+      right.putInt(COUNT_OFFSET, moved);
+      page.putInt(COUNT_OFFSET, leftCount - 1);
+      leafInsertAt(page, position, key, value, 0);
+    } else {
+      int moved = count - leftCount;
+      System.arraycopy(bytes, leafKeyOffset(leftCount), right.array(), leafKeyOffset(0), moved * Integer.BYTES);
+      System.arraycopy(bytes, leafValueOffset(leftCount), right.array(), leafValueOffset(0),
+          moved * this.valueSize);
+      right.putInt(COUNT_OFFSET, moved);
+      page.putInt(COUNT_OFFSET, leftCount);
+      leafInsertAt(right, position - leftCount, key, value, 0);
+    }
+
+    int oldRight = page.getInt(RIGHT_SIBLING_OFFSET);
+    right.putInt(RIGHT_SIBLING_OFFSET, oldRight);
+    right.putInt(LEFT_SIBLING_OFFSET, pageId);
+    page.putInt(RIGHT_SIBLING_OFFSET, rightPageId);
+
+    if (oldRight != NO_PAGE) {
+      ByteBuffer next = fetch(oldRight);
+      next.putInt(LEFT_SIBLING_OFFSET, rightPageId);
+      release(oldRight, true);
+    }
+
+    int separator = right.getInt(leafKeyOffset(0));
+    release(rightPageId, true);
+    return separator;
+  }
+
+  // Without a log the meta page is rewritten at once; with one it is staged after the insert
+  private void updateMeta() throws IOException {
+    if (this.log == null) {
+      writeMeta();
+    }
+  }
+
+  private void writeMeta() throws IOException {
+    ByteBuffer meta = metaPage();
+
+    // the meta page is written straight to the file rather than through the pool
+    long position = (long) META_PAGE_ID * this.pageSize;
+    while (meta.hasRemaining()) {
+      this.channel.write(meta, position + meta.position());
+    }
+  }
+
+  private ByteBuffer metaPage() {
+    ByteBuffer meta = ByteBuffer.allocate(this.pageSize);
+    meta.putInt(MAGIC_OFFSET, MAGIC);
+    meta.putInt(PAGE_SIZE_OFFSET, this.pageSize);
+    meta.putInt(VALUE_SIZE_OFFSET, this.valueSize);
+    meta.putInt(ROOT_OFFSET, this.rootPageId);
+    meta.putInt(FIRST_LEAF_OFFSET, this.firstLeafPageId);
+    meta.putInt(NUM_PAGES_OFFSET, this.numPages);
+    meta.putInt(HEIGHT_OFFSET, this.height);
+    meta.putLong(NUM_ENTRIES_OFFSET, this.numEntries);
+    meta.putInt(HEAP_PAGES_OFFSET, this.heapPages);
+    meta.putLong(HEAP_RECORDS_OFFSET, this.heapRecords);
+    meta.putInt(HEAP_SLOT_OFFSET, this.heapSlot);
+    return meta;
+  }
+
+  /*
+   * Builds index.<pagesize> from heap.<pagesize> on first use, or adds the records
+   * appended to the heap since it was last brought up to date, then answers the same
+   * equality and range searches as BPlusTree.main straight from the index file.
+   */
+  public static void main(String[] args) throws IOException {
+
+    // check for correct number of arguments
+    if (args.length != constants.DBQUERY_ARG_COUNT) {
+      System.out.println("Error: Incorrect number of arguments were input");
+      return;
+    }
+
+    int pageSize = Integer.parseInt(args[constants.DBQUERY_PAGE_SIZE_ARG]);
+    int sv1 = Integer.parseInt(args[constants.DBQUERY_ARG1]);
+    int sv2 = Integer.parseInt(args[constants.DBQUERY_ARG2]);
+    int rv1 = Integer.parseInt(args[constants.DBQUERY_ARG3]);
+    int rv2 = Integer.parseInt(args[constants.DBQUERY_ARG4]);
+    String heapFile = "heap." + pageSize;
+    String indexFile = "index." + pageSize;
+
+    PagedBPlusTree tree = null;
+    try {
+      long startTime = System.nanoTime();
+      if (new File(indexFile).exists()) {
+        tree = open(indexFile);
+        long added = tree.refresh(heapFile);
+        if (added > 0) {
+          long refreshTime = (System.nanoTime() - startTime) / constants.MILLISECONDS_PER_SECOND;
+          System.out.println("Added " + added + " records to " + indexFile + " in " + refreshTime + " ms");
+        }
+      } else {
+        tree = build(indexFile, heapFile, pageSize, constants.BULK_LOAD_FILL_FACTOR);
+        long buildTime = (System.nanoTime() - startTime) / constants.MILLISECONDS_PER_SECOND;
+        System.out.println("Built " + indexFile + " with " + tree.size() + " records in " + buildTime + " ms");
+      }
+
+      startTime = System.nanoTime();
+      //equality search
+      System.out.println("equality search on " + indexFile);
+      for (int key : new int[] { sv1, sv2 }) {
+        byte[] record = tree.search(key);
+        if (record == null) {
+          System.out.println("Record " + key + " Not Found");
+        } else {
+          System.out.println("Record " + key + " Found : " + BPlusTree.formatRecord(record, 0));
+        }
+      }
+
+      //range search
+      System.out.println("range search on " + indexFile);
+      for (byte[] record : tree.search(rv1, rv2)) {
+        System.out.println(BPlusTree.formatRecord(record, 0));
+      }
+
+      long timeInNanoseconds = System.nanoTime() - startTime;
+      System.out.println("Time taken: " + timeInNanoseconds + " ns");
+    }
+    catch (FileNotFoundException e) {
+      System.err.println("File not found " + e.getMessage());
+    }
+    finally {
+      if (tree != null) {
+        tree.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// Checks BPlusTree range searches against a scan of the whole leaf chain
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/*
+ * Usage: java RangeSearchCheck [ranges]
+ *
+ * For fanouts 200 and 1000, builds trees from sequential and from shuffled keys, each
+ * key inserted several times, and runs random ranges (including empty, inverted and
+ * out-of-range ones) through search(lo, hi), cursor(lo, hi) and sequential and
+ * parallel stream(lo, hi). Every answer must equal the pairs a full walk of the leaf
+ * chain from the first leaf finds in [lo, hi], in the same order. Values hold the
+ * insertion number, so losing or reordering a duplicate is caught too. Exits with
+ * status 1 on the first mismatch.
+ */
+public class RangeSearchCheck {
+  private static final int[] FANOUTS = { 200, 1000 };
+  private static final int NUM_KEYS = 20000;
+  private static final int COPIES = 3;
+
+  // The values with keys in [lowerBound, upperBound], found the old way: every leaf, every pair
+  private static List<Integer> fullScan(BPlusTree bpt, int lowerBound, int upperBound) {
+    List<Integer> values = new ArrayList<Integer>();
+    for (BPlusTree.LeafNode leaf = bpt.firstLeaf; leaf != null; leaf = leaf.rightSibling) {
+      for (int i = 0; i < leaf.numPairs; i++) {
+        if (leaf.keys[i] >= lowerBound && leaf.keys[i] <= upperBound) {
+          values.add(ByteBuffer.wrap(leaf.getValue(i)).getInt());
+        }
+      }
+    }
+    return values;
+  }
+
+  private static List<Integer> decode(Collection<byte[]> values) {
+    List<Integer> decoded = new ArrayList<Integer>();
+    for (byte[] value : values) {
+      decoded.add(ByteBuffer.wrap(value).getInt());
+    }
+    return decoded;
+  }
+
+  private static void check(String what, List<Integer> expected, List<Integer> actual) {
+    if (!expected.equals(actual)) {
+      System.out.println("MISMATCH " + what + ": expected " + expected.size() + " values, got " + actual.size());
+      System.exit(1);
+    }
+  }
+
+  public static void main(String[] args) {
+
+    int numRanges = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+    Random random = new Random(42);
+
+    for (int m : FANOUTS) {
+      for (boolean shuffled : new boolean[] { false, true }) {
+
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < NUM_KEYS; i++) {
+          for (int c = 0; c < COPIES; c++) {
+            keys.add(i * 2);
+          }
+        }
+        if (shuffled) {
+          Collections.shuffle(keys, random);
+        }
+
+        BPlusTree bpt = new BPlusTree(m);
+        for (int i = 0; i < keys.size(); i++) {
+          // search decodes every value as a record, so values are record-sized
+          bpt.insert(keys.get(i), ByteBuffer.allocate(constants.TOTAL_SIZE).putInt(i).array());
+        }
+
+        int maxKey = 2 * NUM_KEYS;
+        for (int r = 0; r < numRanges; r++) {
+          int lo = random.nextInt(maxKey + 20) - 10;
+          // mostly short ranges, some long, and now and then an inverted one
+          int hi = lo + ((r % 10 == 0) ? random.nextInt(maxKey) : random.nextInt(64)) - ((r % 50 == 0) ? 70 : 0);
+          String what = "m=" + m + (shuffled ? " shuffled" : " sequential") + " [" + lo + ", " + hi + "]";
+
+          List<Integer> expected = fullScan(bpt, lo, hi);
+          check(what + " search", expected, decode(bpt.search(lo, hi, false)));
+
+          List<byte[]> walked = new ArrayList<byte[]>();
+          BPlusTree.RangeCursor cursor = bpt.cursor(lo, hi);
+          while (cursor.hasNext()) {
+            walked.add(cursor.next());
+          }
+          check(what + " cursor", expected, decode(walked));
+
+          check(what + " stream", expected, decode(bpt.stream(lo, hi, false).collect(Collectors.toList())));
+          check(what + " parallel stream", expected, decode(bpt.stream(lo, hi, true).collect(Collectors.toList())));
+        }
+        System.out.println("fanout " + m + (shuffled ? " shuffled  " : " sequential") + "  " + numRanges
+            + " ranges ok");
+      }
+    }
+  }
+}
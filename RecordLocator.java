@@ -0,0 +1,51 @@
+// Compact (page, slot) references to records in a heap.<pagesize> file
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * A locator is LOCATOR_SIZE bytes: the page number followed by the slot within the page,
+ * both as big-endian ints. Secondary indexes store these instead of a copy of the
+ * 111 byte record, and only go to the heap file when the record itself is needed.
+ */
+public class RecordLocator {
+  public static final int PAGE_OFFSET = 0;
+  public static final int SLOT_OFFSET = Integer.BYTES;
+
+  // Locators are written and read once per posting, so these work on the array directly
+  public static void encode(int pageId, int slot, byte[] dest, int offset) {
+    putInt(dest, offset + PAGE_OFFSET, pageId);
+    putInt(dest, offset + SLOT_OFFSET, slot);
+  }
+
+  public static int page(byte[] locator, int offset) {
+    return getInt(locator, offset + PAGE_OFFSET);
+  }
+
+  public static int slot(byte[] locator, int offset) {
+    return getInt(locator, offset + SLOT_OFFSET);
+  }
+
+  private static void putInt(byte[] dest, int offset, int value) {
+    dest[offset] = (byte) (value >>> 24);
+    dest[offset + 1] = (byte) (value >>> 16);
+    dest[offset + 2] = (byte) (value >>> 8);
+    dest[offset + 3] = (byte) value;
+  }
+
+  private static int getInt(byte[] src, int offset) {
+    return (src[offset] << 24) | ((src[offset + 1] & 0xff) << 16) | ((src[offset + 2] & 0xff) << 8)
+        | (src[offset + 3] & 0xff);
+  }
+
+  // Copies the record the locator points at into dest
+  public static void fetch(PageSource heap, byte[] locator, int offset, byte[] dest) throws IOException {
+    int pageId = page(locator, offset);
+    ByteBuffer page = heap.fetchPage(pageId);
+    try {
+      page.get(slot(locator, offset) * constants.TOTAL_SIZE, dest, 0, constants.TOTAL_SIZE);
+    } finally {
+      heap.unpinPage(pageId);
+    }
+  }
+}
@@ -0,0 +1,519 @@
+// A secondary index on the SDT_NAME field, keyed by byte strings
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/*
+ * SDT_NAME is the sensor id followed by the reading's date and time, so keys in one node
+ * usually agree on their first several bytes. Every node stores the longest prefix its
+ * keys share once, and packs only the remaining suffixes into a single byte slab. The
+ * separators in internal nodes are the shortest byte strings that still tell two
+ * neighbouring leaves apart, which keeps them to a few bytes each.
+ *
+ * Keys are the field with its space padding removed and compare as unsigned bytes. Each
+ * entry maps a key to the RecordLocator of its record; equal keys are kept in the order
+ * they were added.
+ */
+public class SdtNameIndex {
+  int m;
+  Node root;
+  LeafNode firstLeaf;
+  long numEntries;
+
+  public SdtNameIndex(int m) {
+    if (m < 3) {
+      throw new IllegalArgumentException("Fanout must be at least 3");
+    }
+    this.m = m;
+  }
+
+  /*
+   * Builds the index from every record in the heap file. The (key, locator) entries are
+   * sorted once and the tree is built bottom-up with leaves filled to fillFactor.
+   * Returns the number of records indexed.
+   */
+  public long build(PageSource heap, double fillFactor) throws IOException {
+
+    if (this.root != null) {
+      throw new IllegalStateException("Build requires an empty index");
+    }
+    if (fillFactor <= 0 || fillFactor > 1) {
+      throw new IllegalArgumentException("Fill factor must be in (0, 1]: " + fillFactor);
+    }
+
+    byte[][] keys = new byte[16][];
+    int[] positions = new int[16];
+    int numKeys = 0;
+    int numRecordsPerPage = heap.numRecordsPerPage();
+    int numPages = heap.numPages();
+
+    for (int pageId = 0; pageId < numPages; pageId++) {
+      ByteBuffer page = heap.fetchPage(pageId);
+      for (int i = 0; i < numRecordsPerPage; i++) {
+        // an empty SdtName marks the end of the records in a packed page
+        if (page.get(i * constants.TOTAL_SIZE) == 0) {
+          break;
+        }
+        if (numKeys == keys.length) {
+          keys = Arrays.copyOf(keys, numKeys * 2);
+          positions = Arrays.copyOf(positions, numKeys * 2);
+        }
+        keys[numKeys] = readKey(page, i * constants.TOTAL_SIZE);
+        positions[numKeys++] = pageId * numRecordsPerPage + i;
+      }
+      heap.unpinPage(pageId);
+    }
+
+    if (numKeys == 0) {
+      return 0;
+    }
+
+    // Rank each key among the distinct keys, then pack the rank with the record's heap
+    // position so one sort of a long[] orders the entries and keeps equal keys in heap order
+    byte[][] distinct = Arrays.copyOf(keys, numKeys);
+    Arrays.sort(distinct, Arrays::compareUnsigned);
+    int numDistinct = 0;
+    for (byte[] key : distinct) {
+      if (numDistinct == 0 || !Arrays.equals(distinct[numDistinct - 1], key)) {
+        distinct[numDistinct++] = key;
+      }
+    }
+    long[] entries = new long[numKeys];
+    for (int e = 0; e < numKeys; e++) {
+      long rank = Arrays.binarySearch(distinct, 0, numDistinct, keys[e], Arrays::compareUnsigned);
+      entries[e] = (rank << 32) | positions[e];
+    }
+    Arrays.sort(entries);
+
+    int minKeys = Math.max(1, this.m / 2 - 1);
+    int perLeaf = Math.max(minKeys, Math.min(this.m - 1, (int) (fillFactor * (this.m - 1))));
+    int[] leafSizes = BPlusTree.groupSizes(numKeys, perLeaf, minKeys, this.m - 1);
+
+    // separators[i] is the separator in front of level[i]
+    ArrayList<Node> level = new ArrayList<Node>();
+    ArrayList<byte[]> separators = new ArrayList<byte[]>();
+    byte[][] leafKeys = new byte[this.m][];
+    byte[] previousKey = null;
+    int next = 0;
+
+    for (int size : leafSizes) {
+      LeafNode leaf = new LeafNode();
+      for (int j = 0; j < size; j++) {
+        long entry = entries[next++];
+        int position = (int) entry;
+        leafKeys[j] = distinct[(int) (entry >>> 32)];
+        RecordLocator.encode(position / numRecordsPerPage, position % numRecordsPerPage, leaf.locators,
+            j * constants.LOCATOR_SIZE);
+      }
+      leaf.setKeys(leafKeys, size);
+
+      if (!level.isEmpty()) {
+        ((LeafNode) level.get(level.size() - 1)).rightSibling = leaf;
+      }
+      separators.add(previousKey == null ? null : shortestSeparator(previousKey, leafKeys[0]));
+      level.add(leaf);
+      previousKey = leafKeys[size - 1];
+    }
+    this.firstLeaf = (LeafNode) level.get(0);
+
+    int minDegree = (int) Math.ceil(this.m / 2.0);
+    int fanout = Math.max(Math.max(2, minDegree), Math.min(this.m, (int) (fillFactor * this.m)));
+    byte[][] nodeKeys = new byte[this.m][];
+
+    while (level.size() > 1) {
+      int[] sizes = BPlusTree.groupSizes(level.size(), fanout, minDegree, this.m);
+      ArrayList<Node> parents = new ArrayList<Node>(sizes.length);
+      ArrayList<byte[]> parentSeparators = new ArrayList<byte[]>(sizes.length);
+      next = 0;
+
+      for (int size : sizes) {
+        InternalNode in = new InternalNode();
+        parentSeparators.add(separators.get(next));
+        for (int j = 0; j < size; j++) {
+          if (j > 0) {
+            nodeKeys[j - 1] = separators.get(next);
+          }
+          in.children[j] = level.get(next++);
+        }
+        in.setKeys(nodeKeys, size - 1);
+        parents.add(in);
+      }
+
+      level = parents;
+      separators = parentSeparators;
+    }
+
+    this.root = level.get(0);
+    this.numEntries = numKeys;
+    return numKeys;
+  }
+
+  // Adds an entry mapping sdtName to the record at (pageId, slot)
+  public void insert(String sdtName, int pageId, int slot) {
+    insert(toKey(sdtName), pageId, slot);
+  }
+
+  public void insert(byte[] key, int pageId, int slot) {
+
+    if (this.root == null) {
+      this.firstLeaf = new LeafNode();
+      this.root = this.firstLeaf;
+    }
+
+    // Descend after any equal keys, remembering the path for splits
+    ArrayList<InternalNode> path = new ArrayList<InternalNode>();
+    Node node = this.root;
+    while (node instanceof InternalNode) {
+      InternalNode in = (InternalNode) node;
+      path.add(in);
+      node = in.children[in.upperBound(key)];
+    }
+
+    LeafNode leaf = (LeafNode) node;
+    byte[][] keys = leaf.keys(1);
+    int index = leaf.upperBound(key);
+    System.arraycopy(keys, index, keys, index + 1, leaf.numKeys - index);
+    keys[index] = key;
+    System.arraycopy(leaf.locators, index * constants.LOCATOR_SIZE, leaf.locators,
+        (index + 1) * constants.LOCATOR_SIZE, (leaf.numKeys - index) * constants.LOCATOR_SIZE);
+    RecordLocator.encode(pageId, slot, leaf.locators, index * constants.LOCATOR_SIZE);
+    int numKeys = leaf.numKeys + 1;
+    this.numEntries++;
+
+    if (numKeys < this.m) {
+      leaf.setKeys(keys, numKeys);
+      return;
+    }
+
+    // Split the leaf in two and pass the shortest separator between them upwards
+    int split = numKeys / 2;
+    LeafNode sibling = new LeafNode();
+    sibling.setKeys(Arrays.copyOfRange(keys, split, numKeys), numKeys - split);
+    System.arraycopy(leaf.locators, split * constants.LOCATOR_SIZE, sibling.locators, 0,
+        (numKeys - split) * constants.LOCATOR_SIZE);
+    leaf.setKeys(keys, split);
+    sibling.rightSibling = leaf.rightSibling;
+    leaf.rightSibling = sibling;
+
+    byte[] separator = shortestSeparator(keys[split - 1], keys[split]);
+    Node left = leaf;
+    Node right = sibling;
+
+    for (int level = path.size() - 1; level >= 0; level--) {
+      InternalNode parent = path.get(level);
+      byte[][] separators = parent.keys(1);
+      int childIndex = 0;
+      while (parent.children[childIndex] != left) {
+        childIndex++;
+      }
+
+      System.arraycopy(separators, childIndex, separators, childIndex + 1, parent.numKeys - childIndex);
+      System.arraycopy(parent.children, childIndex + 1, parent.children, childIndex + 2,
+          parent.numKeys - childIndex);
+      separators[childIndex] = separator;
+      parent.children[childIndex + 1] = right;
+      int degree = parent.numKeys + 2;
+
+      if (degree <= this.m) {
+        parent.setKeys(separators, degree - 1);
+        return;
+      }
+
+      // The middle separator moves up; the children to its right go to a new sibling
+      int midpoint = degree / 2;
+      InternalNode rightNode = new InternalNode();
+      rightNode.setKeys(Arrays.copyOfRange(separators, midpoint, degree - 1), degree - 1 - midpoint);
+      System.arraycopy(parent.children, midpoint, rightNode.children, 0, degree - midpoint);
+      Arrays.fill(parent.children, midpoint, degree, null);
+      parent.setKeys(separators, midpoint - 1);
+
+      separator = separators[midpoint - 1];
+      left = parent;
+      right = rightNode;
+    }
+
+    InternalNode newRoot = new InternalNode();
+    newRoot.setKeys(new byte[][] { separator }, 1);
+    newRoot.children[0] = left;
+    newRoot.children[1] = right;
+    this.root = newRoot;
+  }
+
+  // The locators stored under sdtName, in the order they were added
+  public ArrayList<byte[]> search(String sdtName) {
+    byte[] key = toKey(sdtName);
+    return scan(key, key, false);
+  }
+
+  // The locators of every key starting with prefix, in key order
+  public ArrayList<byte[]> searchPrefix(String prefix) {
+    // unlike a whole key, a prefix may end in a space that belongs to it
+    byte[] key = prefix.getBytes(StandardCharsets.ISO_8859_1);
+    return scan(key, key, true);
+  }
+
+  // Reads the records whose SDT_NAME starts with prefix from the heap file
+  public ArrayList<byte[]> searchPrefixRecords(String prefix, PageSource heap) throws IOException {
+
+    ArrayList<byte[]> locators = searchPrefix(prefix);
+    ArrayList<byte[]> records = new ArrayList<byte[]>(locators.size());
+    for (byte[] locator : locators) {
+      byte[] record = new byte[constants.TOTAL_SIZE];
+      RecordLocator.fetch(heap, locator, 0, record);
+      records.add(record);
+    }
+    return records;
+  }
+
+  public long size() {
+    return this.numEntries;
+  }
+
+  // Bytes held by keys and separators, against the bytes the same keys take uncompressed
+  public long[] keyBytes() {
+
+    long[] bytes = new long[2];
+    ArrayList<Node> level = new ArrayList<Node>();
+    if (this.root != null) {
+      level.add(this.root);
+    }
+
+    while (!level.isEmpty()) {
+      ArrayList<Node> below = new ArrayList<Node>();
+      for (Node node : level) {
+        bytes[0] += node.prefix.length + node.ends[node.numKeys];
+        bytes[1] += (long) node.prefix.length * node.numKeys + node.ends[node.numKeys];
+        if (node instanceof InternalNode) {
+          InternalNode in = (InternalNode) node;
+          for (int i = 0; i <= in.numKeys; i++) {
+            below.add(in.children[i]);
+          }
+        }
+      }
+      level = below;
+    }
+    return bytes;
+  }
+
+  /*
+   * Walks the entries from the first key >= low. With prefixMatch the scan keeps going
+   * while keys start with low, otherwise while they equal high.
+   */
+  private ArrayList<byte[]> scan(byte[] low, byte[] high, boolean prefixMatch) {
+
+    ArrayList<byte[]> locators = new ArrayList<byte[]>();
+    if (this.root == null) {
+      return locators;
+    }
+
+    // Equal keys may straddle a separator, so take the leftmost path that can hold low
+    Node node = this.root;
+    while (node instanceof InternalNode) {
+      InternalNode in = (InternalNode) node;
+      node = in.children[in.lowerBound(low)];
+    }
+
+    LeafNode leaf = (LeafNode) node;
+    int index = leaf.lowerBound(low);
+
+    for (; leaf != null; leaf = leaf.rightSibling, index = 0) {
+      for (int i = index; i < leaf.numKeys; i++) {
+        boolean match = prefixMatch ? leaf.startsWith(i, low) : leaf.compare(high, i) == 0;
+        if (!match) {
+          return locators;
+        }
+        locators.add(Arrays.copyOfRange(leaf.locators, i * constants.LOCATOR_SIZE,
+            (i + 1) * constants.LOCATOR_SIZE));
+      }
+    }
+    return locators;
+  }
+
+  // The SDT_NAME field of the record at offset, without its space padding
+  private static byte[] readKey(ByteBuffer page, int offset) {
+    int length = constants.STD_NAME_SIZE;
+    while (length > 0 && page.get(offset + length - 1) == ' ') {
+      length--;
+    }
+    byte[] key = new byte[length];
+    page.get(offset, key, 0, length);
+    return key;
+  }
+
+  private static byte[] toKey(String sdtName) {
+    return sdtName.stripTrailing().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  // The shortest prefix of right that still sorts after left
+  private static byte[] shortestSeparator(byte[] left, byte[] right) {
+    int common = Arrays.mismatch(left, right);
+    if (common == -1 || common >= right.length) {
+      // equal keys on both sides leave nothing to cut
+      return right;
+    }
+    return Arrays.copyOf(right, common + 1);
+  }
+
+  /*
+   * The keys of a node: a shared prefix, then each key's remaining bytes packed back to
+   * back in suffixes, with key i's suffix ending at ends[i + 1].
+   */
+  private abstract class Node {
+    int numKeys;
+    byte[] prefix = new byte[0];
+    byte[] suffixes = new byte[0];
+    int[] ends = new int[1];
+
+    // Replaces the keys with the first n of keys, which must be sorted
+    void setKeys(byte[][] keys, int n) {
+
+      int prefixLength = 0;
+      if (n > 0) {
+        // the first and last key share the prefix of every key between them
+        int common = Arrays.mismatch(keys[0], keys[n - 1]);
+        prefixLength = (common == -1) ? keys[0].length : common;
+        this.prefix = Arrays.copyOf(keys[0], prefixLength);
+      } else {
+        this.prefix = new byte[0];
+      }
+
+      int total = 0;
+      for (int i = 0; i < n; i++) {
+        total += keys[i].length - prefixLength;
+      }
+      this.suffixes = new byte[total];
+      this.ends = new int[n + 1];
+      for (int i = 0; i < n; i++) {
+        int length = keys[i].length - prefixLength;
+        System.arraycopy(keys[i], prefixLength, this.suffixes, this.ends[i], length);
+        this.ends[i + 1] = this.ends[i] + length;
+      }
+      this.numKeys = n;
+    }
+
+    // The keys in full, with spare slots at the end of the array
+    byte[][] keys(int spare) {
+      byte[][] keys = new byte[this.numKeys + spare][];
+      for (int i = 0; i < this.numKeys; i++) {
+        int length = this.ends[i + 1] - this.ends[i];
+        keys[i] = Arrays.copyOf(this.prefix, this.prefix.length + length);
+        System.arraycopy(this.suffixes, this.ends[i], keys[i], this.prefix.length, length);
+      }
+      return keys;
+    }
+
+    // Negative if probe sorts before every key, positive if after, 0 if it starts with the prefix
+    int comparePrefix(byte[] probe) {
+      int length = Math.min(probe.length, this.prefix.length);
+      int cmp = Arrays.compareUnsigned(probe, 0, length, this.prefix, 0, length);
+      if (cmp != 0) {
+        return cmp;
+      }
+      return (probe.length < this.prefix.length) ? -1 : 0;
+    }
+
+    // Compares probe with key i
+    int compare(byte[] probe, int i) {
+      int cmp = comparePrefix(probe);
+      return (cmp != 0) ? cmp : compareSuffix(probe, i);
+    }
+
+    // Compares probe with key i, given that probe starts with the prefix
+    int compareSuffix(byte[] probe, int i) {
+      return Arrays.compareUnsigned(probe, this.prefix.length, probe.length, this.suffixes, this.ends[i],
+          this.ends[i + 1]);
+    }
+
+    // First key >= probe
+    int lowerBound(byte[] probe) {
+      return bound(probe, false);
+    }
+
+    // First key > probe
+    int upperBound(byte[] probe) {
+      return bound(probe, true);
+    }
+
+    private int bound(byte[] probe, boolean upper) {
+      // the prefix settles the comparison with every key at once unless probe starts with it
+      int cmp = comparePrefix(probe);
+      if (cmp != 0) {
+        return (cmp < 0) ? 0 : this.numKeys;
+      }
+
+      int low = 0;
+      int high = this.numKeys;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        int c = compareSuffix(probe, mid);
+        if (c > 0 || (upper && c == 0)) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    boolean startsWith(int i, byte[] probe) {
+      int length = this.prefix.length + this.ends[i + 1] - this.ends[i];
+      if (length < probe.length) {
+        return false;
+      }
+      int fromPrefix = Math.min(probe.length, this.prefix.length);
+      return Arrays.equals(probe, 0, fromPrefix, this.prefix, 0, fromPrefix)
+          && Arrays.equals(probe, fromPrefix, probe.length, this.suffixes, this.ends[i],
+              this.ends[i] + probe.length - fromPrefix);
+    }
+  }
+
+  private class InternalNode extends Node {
+    // one spare child slot lets a node overflow before it splits
+    Node[] children = new Node[m + 1];
+  }
+
+  private class LeafNode extends Node {
+    byte[] locators = new byte[m * constants.LOCATOR_SIZE];
+    LeafNode rightSibling;
+  }
+
+  /*
+   * Usage: java SdtNameIndex pagesize prefix [-mmap]
+   * Indexes heap.pagesize on SDT_NAME and prints the records whose SDT_NAME starts with
+   * prefix, e.g. "703/01/2019" for sensor 7 on 1 March 2019.
+   */
+  public static void main(String[] args) throws IOException {
+
+    boolean mapped = args.length == 3 && args[2].equals(constants.MMAP_FLAG);
+    if (args.length != 2 && !mapped) {
+      System.out.println("Error: Incorrect number of arguments were input");
+      return;
+    }
+
+    int pageSize = Integer.parseInt(args[0]);
+    String datafile = "heap." + pageSize;
+    PageSource heap = mapped ? new MappedHeapFile(datafile, pageSize) : new HeapFile(datafile, pageSize);
+    try {
+      long startTime = System.nanoTime();
+      SdtNameIndex index = new SdtNameIndex(200);
+      index.build(heap, constants.BULK_LOAD_FILL_FACTOR);
+      long builtTime = System.nanoTime();
+
+      ArrayList<byte[]> records = index.searchPrefixRecords(args[1], heap);
+      long finishTime = System.nanoTime();
+
+      for (byte[] record : records) {
+        System.out.println(BPlusTree.formatRecord(record, 0));
+      }
+      long[] keyBytes = index.keyBytes();
+      System.out.println(records.size() + " records found");
+      System.out.println("Index key bytes: " + keyBytes[0] + " (" + keyBytes[1] + " without prefix compression)");
+      System.out.println("Build time: " + (builtTime - startTime) / constants.MILLISECONDS_PER_SECOND + " ms");
+      System.out.println("Query time: " + (finishTime - builtTime) / constants.MILLISECONDS_PER_SECOND + " ms");
+    } finally {
+      heap.close();
+    }
+  }
+}
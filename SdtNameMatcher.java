@@ -0,0 +1,62 @@
+// Matches search text against the SDT_NAME field of records in place
+
+import java.nio.ByteBuffer;
+
+/*
+ * The text is turned into bytes and a Boyer-Moore-Horspool shift table once, and each
+ * record is then tested straight on its page: nothing is copied or allocated per record,
+ * so a scan only decodes the records that match. The table lets a mismatch skip ahead by
+ * up to the length of the text instead of one byte at a time.
+ */
+public class SdtNameMatcher {
+  byte[] pattern;
+  int[] shifts;
+  boolean prefix;
+
+  // Matches records whose SDT_NAME starts with text if prefix is set, or contains it otherwise
+  public SdtNameMatcher(String text, boolean prefix) {
+    this.pattern = text.getBytes();
+    this.prefix = prefix;
+
+    // a byte that does not occur in the pattern lets the window move past it entirely
+    int m = this.pattern.length;
+    this.shifts = new int[256];
+    for (int i = 0; i < 256; i++) {
+      this.shifts[i] = m;
+    }
+    for (int i = 0; i < m - 1; i++) {
+      this.shifts[this.pattern[i] & 0xff] = m - 1 - i;
+    }
+  }
+
+  // Whether the SDT_NAME of the record at base within page matches
+  public boolean matches(ByteBuffer page, int base) {
+
+    int m = this.pattern.length;
+    int n = constants.STD_NAME_SIZE;
+    if (m > n) {
+      return false;
+    }
+
+    if (this.prefix) {
+      for (int i = 0; i < m; i++) {
+        if (page.get(base + i) != this.pattern[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    for (int i = 0; i <= n - m; ) {
+      int j = m - 1;
+      while (j >= 0 && page.get(base + i + j) == this.pattern[j]) {
+        j--;
+      }
+      if (j < 0) {
+        return true;
+      }
+      i += this.shifts[page.get(base + i + m - 1) & 0xff];
+    }
+    return false;
+  }
+}
@@ -0,0 +1,303 @@
+// A B+ tree whose readers work on immutable snapshots
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Nodes reachable from a published root are never changed. A writer copies the nodes on
+ * the path it changes, links the copies under a new root and publishes that root with a
+ * single atomic store. A reader takes the current snapshot and keeps walking that
+ * version without latches, however many inserts are published meanwhile.
+ *
+ * Writers run one at a time. insertAll publishes a whole batch as one version and copies
+ * each node at most once per batch: a copy carries the version being written and is
+ * changed in place until the batch is published. Old versions are not reclaimed
+ * explicitly; once no snapshot refers to a root, the nodes only it reached become garbage.
+ *
+ * Leaves are not chained, since linking a copied leaf would mean copying its left
+ * neighbour and everything above it too; range searches descend from the root instead.
+ */
+public class SnapshotBPlusTree {
+  int m;
+  int valueSize;
+  final AtomicReference<Snapshot> current;
+  // version of the next batch, newer than every published version
+  long writeVersion;
+  // the node split off by the last call to insertInto, and its separator
+  Node splitRight;
+  int splitKey;
+
+  public SnapshotBPlusTree(int m) {
+    this(m, constants.TOTAL_SIZE);
+  }
+
+  public SnapshotBPlusTree(int m, int valueSize) {
+    if (m < 3) {
+      throw new IllegalArgumentException("Fanout must be at least 3");
+    }
+    this.m = m;
+    this.valueSize = valueSize;
+    this.current = new AtomicReference<Snapshot>(new Snapshot(new LeafNode(0), 0, 0));
+    this.writeVersion = 1;
+  }
+
+  // The latest published version; it stays valid for as long as the caller holds it
+  public Snapshot snapshot() {
+    return this.current.get();
+  }
+
+  public void insert(int key, byte[] value) {
+    insertAll(new int[] { key }, new byte[][] { value });
+  }
+
+  // Inserts every pair and publishes them together, so readers see all of them or none
+  public synchronized void insertAll(int[] keys, byte[][] values) {
+
+    if (keys.length != values.length) {
+      throw new IllegalArgumentException("Got " + keys.length + " keys but " + values.length + " values");
+    }
+    for (byte[] value : values) {
+      if (value.length != this.valueSize) {
+        throw new IllegalArgumentException("Value must be " + this.valueSize + " bytes, got " + value.length);
+      }
+    }
+    if (keys.length == 0) {
+      return;
+    }
+
+    Snapshot base = this.current.get();
+    Node root = base.root;
+    for (int i = 0; i < keys.length; i++) {
+      root = insertInto(root, keys[i], values[i]);
+      if (this.splitRight != null) {
+        // the split reached the root, so the tree grows by one level
+        InternalNode newRoot = new InternalNode(this.writeVersion);
+        newRoot.keys[0] = this.splitKey;
+        newRoot.children[0] = root;
+        newRoot.children[1] = this.splitRight;
+        newRoot.numKeys = 1;
+        root = newRoot;
+        this.splitRight = null;
+      }
+    }
+
+    this.current.set(new Snapshot(root, base.size + keys.length, this.writeVersion));
+    this.writeVersion++;
+  }
+
+  public byte[] search(int key) {
+    return snapshot().search(key);
+  }
+
+  public ArrayList<byte[]> search(int lowerBound, int upperBound) {
+    return snapshot().search(lowerBound, upperBound);
+  }
+
+  public long size() {
+    return snapshot().size();
+  }
+
+  /*
+   * Inserts below node and returns the node to link in its place: node itself if this
+   * batch already owns it, a copy otherwise. If the returned node split, splitRight and
+   * splitKey hold the new right sibling and the separator for the caller to link in.
+   */
+  private Node insertInto(Node node, int key, byte[] value) {
+
+    Node writable = (node.version == this.writeVersion) ? node : node.copy(this.writeVersion);
+
+    if (writable instanceof LeafNode) {
+      LeafNode leaf = (LeafNode) writable;
+      leaf.insert(key, value);
+      if (leaf.numKeys == this.m) {
+        this.splitRight = leaf.split();
+        this.splitKey = this.splitRight.keys[0];
+      }
+      return leaf;
+    }
+
+    InternalNode in = (InternalNode) writable;
+    int index = KeySearch.upperBound(in.keys, in.numKeys, key);
+    in.children[index] = insertInto(in.children[index], key, value);
+
+    if (this.splitRight != null) {
+      in.insertChild(this.splitKey, this.splitRight, index + 1);
+      this.splitRight = null;
+      if (in.numKeys == this.m) {
+        int[] pushed = new int[1];
+        this.splitRight = in.split(pushed);
+        this.splitKey = pushed[0];
+      }
+    }
+    return in;
+  }
+
+  // One published version of the tree
+  public class Snapshot {
+    final Node root;
+    final long size;
+    final long version;
+
+    private Snapshot(Node root, long size, long version) {
+      this.root = root;
+      this.size = size;
+      this.version = version;
+    }
+
+    public byte[] search(int key) {
+      byte[] buffer = new byte[valueSize];
+      return search(key, buffer) ? buffer : null;
+    }
+
+    // Copies the value for key into buffer; returns false if key is absent
+    public boolean search(int key, byte[] buffer) {
+
+      Node node = this.root;
+      while (node instanceof InternalNode) {
+        InternalNode in = (InternalNode) node;
+        node = in.children[KeySearch.upperBound(in.keys, in.numKeys, key)];
+      }
+
+      LeafNode leaf = (LeafNode) node;
+      int index = Arrays.binarySearch(leaf.keys, 0, leaf.numKeys, key);
+      if (index < 0) {
+        return false;
+      }
+      System.arraycopy(leaf.values, index * valueSize, buffer, 0, valueSize);
+      return true;
+    }
+
+    public ArrayList<byte[]> search(int lowerBound, int upperBound) {
+      ArrayList<byte[]> values = new ArrayList<byte[]>();
+      if (lowerBound <= upperBound) {
+        collect(this.root, lowerBound, upperBound, values);
+      }
+      return values;
+    }
+
+    public long size() {
+      return this.size;
+    }
+
+    public long version() {
+      return this.version;
+    }
+
+    // Appends the values of node's subtree with keys in [lowerBound, upperBound], in key order
+    private void collect(Node node, int lowerBound, int upperBound, ArrayList<byte[]> values) {
+
+      if (node instanceof LeafNode) {
+        LeafNode leaf = (LeafNode) node;
+        for (int i = KeySearch.lowerBound(leaf.keys, leaf.numKeys, lowerBound); i < leaf.numKeys; i++) {
+          if (leaf.keys[i] > upperBound) {
+            return;
+          }
+          values.add(Arrays.copyOfRange(leaf.values, i * valueSize, (i + 1) * valueSize));
+        }
+        return;
+      }
+
+      // equal keys may sit left of their separator, so start from the leftmost candidate
+      InternalNode in = (InternalNode) node;
+      int first = KeySearch.lowerBound(in.keys, in.numKeys, lowerBound);
+      int last = KeySearch.upperBound(in.keys, in.numKeys, upperBound);
+      for (int i = first; i <= last; i++) {
+        collect(in.children[i], lowerBound, upperBound, values);
+      }
+    }
+  }
+
+  private abstract class Node {
+    // the batch that created this node; only that batch may change it
+    final long version;
+    int numKeys;
+    int[] keys;
+
+    Node(long version) {
+      this.version = version;
+    }
+
+    abstract Node copy(long version);
+  }
+
+  private class InternalNode extends Node {
+    Node[] children;
+
+    private InternalNode(long version) {
+      super(version);
+      // one spare key and child slot let a node overflow before it splits
+      this.keys = new int[m];
+      this.children = new Node[m + 1];
+    }
+
+    Node copy(long version) {
+      InternalNode copy = new InternalNode(version);
+      copy.numKeys = this.numKeys;
+      System.arraycopy(this.keys, 0, copy.keys, 0, this.numKeys);
+      System.arraycopy(this.children, 0, copy.children, 0, this.numKeys + 1);
+      return copy;
+    }
+
+    // Inserts child at index with key as the separator to its left
+    private void insertChild(int key, Node child, int index) {
+      System.arraycopy(this.keys, index - 1, this.keys, index, this.numKeys - index + 1);
+      System.arraycopy(this.children, index, this.children, index + 1, this.numKeys + 1 - index);
+      this.keys[index - 1] = key;
+      this.children[index] = child;
+      this.numKeys++;
+    }
+
+    // Moves the keys after the middle one into a new right node; the middle key is pushed up
+    private InternalNode split(int[] pushedKey) {
+      int mid = this.numKeys / 2;
+      InternalNode right = new InternalNode(this.version);
+      right.numKeys = this.numKeys - mid - 1;
+      System.arraycopy(this.keys, mid + 1, right.keys, 0, right.numKeys);
+      System.arraycopy(this.children, mid + 1, right.children, 0, right.numKeys + 1);
+      Arrays.fill(this.children, mid + 1, this.numKeys + 1, null);
+      pushedKey[0] = this.keys[mid];
+      this.numKeys = mid;
+      return right;
+    }
+  }
+
+  private class LeafNode extends Node {
+    byte[] values;
+
+    private LeafNode(long version) {
+      super(version);
+      this.keys = new int[m];
+      this.values = new byte[m * valueSize];
+    }
+
+    Node copy(long version) {
+      LeafNode copy = new LeafNode(version);
+      copy.numKeys = this.numKeys;
+      System.arraycopy(this.keys, 0, copy.keys, 0, this.numKeys);
+      System.arraycopy(this.values, 0, copy.values, 0, this.numKeys * valueSize);
+      return copy;
+    }
+
+    // Inserts after any equal keys, shifting later pairs right
+    private void insert(int key, byte[] value) {
+      int index = KeySearch.upperBound(this.keys, this.numKeys, key);
+      System.arraycopy(this.keys, index, this.keys, index + 1, this.numKeys - index);
+      System.arraycopy(this.values, index * valueSize, this.values, (index + 1) * valueSize,
+          (this.numKeys - index) * valueSize);
+      this.keys[index] = key;
+      System.arraycopy(value, 0, this.values, index * valueSize, valueSize);
+      this.numKeys++;
+    }
+
+    // Moves the upper half into a new right leaf
+    private LeafNode split() {
+      int leftCount = (this.numKeys + 1) / 2;
+      LeafNode right = new LeafNode(this.version);
+      right.numKeys = this.numKeys - leftCount;
+      System.arraycopy(this.keys, leftCount, right.keys, 0, right.numKeys);
+      System.arraycopy(this.values, leftCount * valueSize, right.values, 0, right.numKeys * valueSize);
+      this.numKeys = leftCount;
+      return right;
+    }
+  }
+}
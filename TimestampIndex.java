@@ -0,0 +1,407 @@
+// A non-unique secondary index on the date field of heap records
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/*
+ * Keys are the 8-byte timestamps stored at constants.DATE_OFFSET. Readings from many
+ * sensors share a timestamp, so a leaf slot holds one distinct timestamp together with a
+ * posting list of the RecordLocators of every record carrying it. A time range query is a
+ * single descent followed by a walk along the leaf chain, and the duplicates cost one
+ * locator each instead of one leaf slot and separator each.
+ */
+public class TimestampIndex {
+  int m;
+  InternalNode root;
+  LeafNode firstLeaf;
+  long numRecords;
+
+  public TimestampIndex(int m) {
+    if (m < 3) {
+      throw new IllegalArgumentException("Fanout must be at least 3");
+    }
+    this.m = m;
+  }
+
+  /*
+   * Builds the index from every record in the heap file. The (timestamp, heap position)
+   * entries are sorted once, each run of equal timestamps becomes a posting list in heap
+   * order, and the tree is built bottom-up with leaves filled to fillFactor. Returns the
+   * number of records indexed.
+   */
+  public long build(PageSource heap, double fillFactor) throws IOException {
+
+    if (this.firstLeaf != null) {
+      throw new IllegalStateException("Build requires an empty index");
+    }
+    if (fillFactor <= 0 || fillFactor > 1) {
+      throw new IllegalArgumentException("Fill factor must be in (0, 1]: " + fillFactor);
+    }
+
+    long[] timestamps = new long[16];
+    int[] positions = new int[16];
+    int numEntries = 0;
+    int numRecordsPerPage = heap.numRecordsPerPage();
+    int numPages = heap.numPages();
+
+    for (int pageId = 0; pageId < numPages; pageId++) {
+      ByteBuffer page = heap.fetchPage(pageId);
+      for (int i = 0; i < numRecordsPerPage; i++) {
+        // an empty SdtName marks the end of the records in a packed page
+        if (page.get(i * constants.TOTAL_SIZE) == 0) {
+          break;
+        }
+        if (numEntries == timestamps.length) {
+          timestamps = Arrays.copyOf(timestamps, numEntries * 2);
+          positions = Arrays.copyOf(positions, numEntries * 2);
+        }
+        timestamps[numEntries] = page.getLong(i * constants.TOTAL_SIZE + constants.DATE_OFFSET);
+        positions[numEntries++] = pageId * numRecordsPerPage + i;
+        this.numRecords++;
+      }
+      heap.unpinPage(pageId);
+    }
+
+    if (numEntries == 0) {
+      return 0;
+    }
+
+    // A timestamp and a heap position do not fit in one long, so each record packs the rank
+    // of its timestamp among the distinct ones with its position, and one sort orders them
+    long[] keys = Arrays.copyOf(timestamps, numEntries);
+    Arrays.sort(keys);
+    int numKeys = 0;
+    for (int e = 0; e < numEntries; e++) {
+      if (numKeys == 0 || keys[numKeys - 1] != keys[e]) {
+        keys[numKeys++] = keys[e];
+      }
+    }
+    long[] entries = new long[numEntries];
+    for (int e = 0; e < numEntries; e++) {
+      long rank = Arrays.binarySearch(keys, 0, numKeys, timestamps[e]);
+      entries[e] = (rank << 32) | positions[e];
+    }
+    Arrays.sort(entries);
+
+    // Cut a posting list from each run of entries with the same timestamp
+    PostingList[] postings = new PostingList[numKeys];
+    for (int e = 0; e < numEntries; e++) {
+      int rank = (int) (entries[e] >>> 32);
+      int position = (int) entries[e];
+      if (postings[rank] == null) {
+        postings[rank] = new PostingList();
+      }
+      postings[rank].add(position / numRecordsPerPage, position % numRecordsPerPage);
+    }
+
+    // Pack the leaves, leaving the last one at least at the minimum
+    int minKeys = minLeafKeys();
+    int perLeaf = Math.max(minKeys, Math.min(this.m - 1, (int) (fillFactor * (this.m - 1))));
+    int[] leafSizes = BPlusTree.groupSizes(numKeys, perLeaf, minKeys, this.m - 1);
+
+    ArrayList<Node> level = new ArrayList<Node>();
+    int next = 0;
+    for (int size : leafSizes) {
+      LeafNode leaf = new LeafNode();
+      for (int j = 0; j < size; j++) {
+        leaf.keys[j] = keys[next];
+        leaf.postings[j] = postings[next];
+        next++;
+      }
+      leaf.numKeys = size;
+      if (!level.isEmpty()) {
+        ((LeafNode) level.get(level.size() - 1)).rightSibling = leaf;
+      }
+      level.add(leaf);
+    }
+    this.firstLeaf = (LeafNode) level.get(0);
+
+    // Then each internal level over the one below, until a single node is left
+    int minDegree = (int) Math.ceil(this.m / 2.0);
+    int fanout = Math.max(Math.max(2, minDegree), Math.min(this.m, (int) (fillFactor * this.m)));
+    while (level.size() > 1) {
+      int[] sizes = BPlusTree.groupSizes(level.size(), fanout, minDegree, this.m);
+      ArrayList<Node> parents = new ArrayList<Node>(sizes.length);
+      next = 0;
+      for (int size : sizes) {
+        InternalNode in = new InternalNode();
+        for (int j = 0; j < size; j++) {
+          Node child = level.get(next++);
+          if (j > 0) {
+            in.keys[j - 1] = child.minKey();
+          }
+          in.childPointers[j] = child;
+          child.parent = in;
+        }
+        in.degree = size;
+        parents.add(in);
+      }
+      level = parents;
+    }
+
+    this.root = (level.get(0) instanceof InternalNode) ? (InternalNode) level.get(0) : null;
+    return this.numRecords;
+  }
+
+  // Adds the record at (pageId, slot) under key
+  public void insert(long key, int pageId, int slot) {
+
+    this.numRecords++;
+    if (this.firstLeaf == null) {
+      this.firstLeaf = new LeafNode();
+    }
+
+    LeafNode ln = findLeafNode(key);
+    int index = Arrays.binarySearch(ln.keys, 0, ln.numKeys, key);
+    if (index >= 0) {
+      // a timestamp already in the index only grows its posting list
+      ln.postings[index].add(pageId, slot);
+      return;
+    }
+
+    PostingList list = new PostingList();
+    list.add(pageId, slot);
+    ln.insertAt(-index - 1, key, list);
+    if (ln.numKeys < this.m) {
+      return;
+    }
+
+    // The leaf has one spare slot, so it overflows by one and then splits in two
+    LeafNode sibling = new LeafNode();
+    int split = ln.numKeys / 2;
+    sibling.numKeys = ln.numKeys - split;
+    System.arraycopy(ln.keys, split, sibling.keys, 0, sibling.numKeys);
+    System.arraycopy(ln.postings, split, sibling.postings, 0, sibling.numKeys);
+    Arrays.fill(ln.postings, split, ln.numKeys, null);
+    ln.numKeys = split;
+    sibling.rightSibling = ln.rightSibling;
+    ln.rightSibling = sibling;
+
+    insertIntoParent(ln, sibling.keys[0], sibling);
+  }
+
+  // Number of records with timestamps in [lowerBound, upperBound]
+  public long count(long lowerBound, long upperBound) {
+
+    long count = 0;
+    LeafNode ln = (lowerBound > upperBound || this.firstLeaf == null) ? null : findLeafNode(lowerBound);
+    int index = (ln == null) ? 0 : KeySearch.lowerBound(ln.keys, ln.numKeys, lowerBound);
+
+    for (; ln != null; ln = ln.rightSibling, index = 0) {
+      for (int i = index; i < ln.numKeys; i++) {
+        if (ln.keys[i] > upperBound) {
+          return count;
+        }
+        count += ln.postings[i].size;
+      }
+    }
+    return count;
+  }
+
+  // The locators of the records with timestamps in [lowerBound, upperBound], in timestamp order
+  public ArrayList<byte[]> searchLocators(long lowerBound, long upperBound) {
+
+    ArrayList<byte[]> locators = new ArrayList<byte[]>();
+    LeafNode ln = (lowerBound > upperBound || this.firstLeaf == null) ? null : findLeafNode(lowerBound);
+    int index = (ln == null) ? 0 : KeySearch.lowerBound(ln.keys, ln.numKeys, lowerBound);
+
+    for (; ln != null; ln = ln.rightSibling, index = 0) {
+      for (int i = index; i < ln.numKeys; i++) {
+        if (ln.keys[i] > upperBound) {
+          return locators;
+        }
+        PostingList list = ln.postings[i];
+        for (int j = 0; j < list.size; j++) {
+          locators.add(Arrays.copyOfRange(list.locators, j * constants.LOCATOR_SIZE,
+              (j + 1) * constants.LOCATOR_SIZE));
+        }
+      }
+    }
+    return locators;
+  }
+
+  // Reads the records with timestamps in [lowerBound, upperBound] from the heap file
+  public ArrayList<byte[]> searchRecords(long lowerBound, long upperBound, PageSource heap) throws IOException {
+
+    ArrayList<byte[]> locators = searchLocators(lowerBound, upperBound);
+    ArrayList<byte[]> records = new ArrayList<byte[]>(locators.size());
+    for (byte[] locator : locators) {
+      byte[] record = new byte[constants.TOTAL_SIZE];
+      RecordLocator.fetch(heap, locator, 0, record);
+      records.add(record);
+    }
+    return records;
+  }
+
+  public long size() {
+    return this.numRecords;
+  }
+
+  // Find the leaf node
+  private LeafNode findLeafNode(long key) {
+
+    if (this.root == null) {
+      return this.firstLeaf;
+    }
+
+    Node node = this.root;
+    while (node instanceof InternalNode) {
+      InternalNode in = (InternalNode) node;
+      node = in.childPointers[KeySearch.upperBound(in.keys, in.degree - 1, key)];
+    }
+    return (LeafNode) node;
+  }
+
+  // Adds right as the sibling after left under left's parent, splitting upwards as needed
+  private void insertIntoParent(Node left, long key, Node right) {
+
+    InternalNode parent = left.parent;
+    if (parent == null) {
+      InternalNode newRoot = new InternalNode();
+      newRoot.keys[0] = key;
+      newRoot.childPointers[0] = left;
+      newRoot.childPointers[1] = right;
+      newRoot.degree = 2;
+      left.parent = newRoot;
+      right.parent = newRoot;
+      this.root = newRoot;
+      return;
+    }
+
+    int index = 0;
+    while (parent.childPointers[index] != left) {
+      index++;
+    }
+    index++;
+    System.arraycopy(parent.keys, index - 1, parent.keys, index, parent.degree - index);
+    System.arraycopy(parent.childPointers, index, parent.childPointers, index + 1, parent.degree - index);
+    parent.keys[index - 1] = key;
+    parent.childPointers[index] = right;
+    parent.degree++;
+    right.parent = parent;
+
+    if (parent.degree <= this.m) {
+      return;
+    }
+
+    // Keys after the midpoint and the children to their right move to the sibling
+    int midpoint = parent.degree / 2;
+    long upKey = parent.keys[midpoint - 1];
+    InternalNode sibling = new InternalNode();
+    sibling.degree = parent.degree - midpoint;
+    System.arraycopy(parent.keys, midpoint, sibling.keys, 0, sibling.degree - 1);
+    System.arraycopy(parent.childPointers, midpoint, sibling.childPointers, 0, sibling.degree);
+    Arrays.fill(parent.childPointers, midpoint, parent.degree, null);
+    parent.degree = midpoint;
+    for (int i = 0; i < sibling.degree; i++) {
+      sibling.childPointers[i].parent = sibling;
+    }
+
+    insertIntoParent(parent, upKey, sibling);
+  }
+
+  private int minLeafKeys() {
+    return Math.max(1, this.m / 2 - 1);
+  }
+
+  // The locators of the records sharing one timestamp, in the order they were added
+  private static class PostingList {
+    byte[] locators = new byte[constants.LOCATOR_SIZE];
+    int size;
+
+    private void add(int pageId, int slot) {
+      if ((this.size + 1) * constants.LOCATOR_SIZE > this.locators.length) {
+        this.locators = Arrays.copyOf(this.locators, this.locators.length * 2);
+      }
+      RecordLocator.encode(pageId, slot, this.locators, this.size * constants.LOCATOR_SIZE);
+      this.size++;
+    }
+  }
+
+  private abstract class Node {
+    InternalNode parent;
+
+    abstract long minKey();
+  }
+
+  private class InternalNode extends Node {
+    int degree;
+    // one spare key and child slot let a node overflow before it splits
+    long[] keys = new long[m];
+    Node[] childPointers = new Node[m + 1];
+
+    long minKey() {
+      return childPointers[0].minKey();
+    }
+  }
+
+  private class LeafNode extends Node {
+    int numKeys;
+    long[] keys = new long[m];
+    PostingList[] postings = new PostingList[m];
+    LeafNode rightSibling;
+
+    long minKey() {
+      return keys[0];
+    }
+
+    // Shifts the slots from index onwards right by one and writes the new key
+    private void insertAt(int index, long key, PostingList list) {
+      System.arraycopy(keys, index, keys, index + 1, numKeys - index);
+      System.arraycopy(postings, index, postings, index + 1, numKeys - index);
+      keys[index] = key;
+      postings[index] = list;
+      numKeys++;
+    }
+  }
+
+  /*
+   * Usage: java TimestampIndex pagesize "from" "to" [-mmap]
+   * where from and to are in the csv's "MM/dd/yyyy hh:mm:ss a" form. Indexes heap.pagesize
+   * and prints the records whose timestamps fall in [from, to].
+   */
+  public static void main(String[] args) throws IOException {
+
+    boolean mapped = args.length == 4 && args[3].equals(constants.MMAP_FLAG);
+    if (args.length != 3 && !mapped) {
+      System.out.println("Error: Incorrect number of arguments were input");
+      return;
+    }
+
+    int pageSize = Integer.parseInt(args[0]);
+    SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy hh:mm:ss a");
+    long from;
+    long to;
+    try {
+      from = dateFormat.parse(args[1]).getTime();
+      to = dateFormat.parse(args[2]).getTime();
+    } catch (ParseException e) {
+      System.err.println("Parse error when parsing date: " + e.getMessage());
+      return;
+    }
+
+    String datafile = "heap." + pageSize;
+    PageSource heap = mapped ? new MappedHeapFile(datafile, pageSize) : new HeapFile(datafile, pageSize);
+    try {
+      long startTime = System.nanoTime();
+      TimestampIndex index = new TimestampIndex(200);
+      index.build(heap, constants.BULK_LOAD_FILL_FACTOR);
+      long builtTime = System.nanoTime();
+
+      ArrayList<byte[]> records = index.searchRecords(from, to, heap);
+      long finishTime = System.nanoTime();
+
+      for (byte[] record : records) {
+        System.out.println(BPlusTree.formatRecord(record, 0));
+      }
+      System.out.println(records.size() + " records found");
+      System.out.println("Build time: " + (builtTime - startTime) / constants.MILLISECONDS_PER_SECOND + " ms");
+      System.out.println("Query time: " + (finishTime - builtTime) / constants.MILLISECONDS_PER_SECOND + " ms");
+    } finally {
+      heap.close();
+    }
+  }
+}
@@ -0,0 +1,258 @@
+// A redo log of page images and page records for a paged index file
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/*
+ * Log file layout, a sequence of batches:
+ * batch header = magic, number of records, payload length, CRC32 of the payload (16 bytes)
+ * record       = page id, kind, length, then length bytes: a whole page for an image, or
+ *                a redo record for the owner of the file to apply to the page
+ *
+ * Callers stage records once an operation is complete. A small change, such as one new
+ * pair in a leaf, is staged as a redo record of just that change, and a structural one
+ * as the after-images of the pages it touched. commit() appends the batch and forces it
+ * with a single fsync, which every operation in the batch shares.
+ *
+ * Redo records are not idempotent, so a page must not reach the file with changes the
+ * log only holds as redo records: before such a page is written back, the owner stages
+ * its image (see needsImage). Replay then starts each page from its last image in the
+ * log, or from the file if it has none, and applies only the redo records after it. A
+ * batch cut short by a crash fails its checksum and is ignored along with anything after it.
+ */
+public class WriteAheadLog {
+  private static final int BATCH_MAGIC = 0x57414c43;
+  private static final int BATCH_HEADER_SIZE = 16;
+  private static final int RECORD_HEADER_SIZE = 12;
+  private static final int IMAGE = 0;
+  private static final int REDO = 1;
+
+  RandomAccessFile file;
+  FileChannel channel;
+  int pageSize;
+  // the batch being staged, after room for its header
+  ByteBuffer batch;
+  int numRecords;
+  // pages with records in the staged batch
+  HashSet<Integer> stagedPages = new HashSet<Integer>();
+  // pages with redo records logged since their last image
+  HashSet<Integer> redoPages = new HashSet<Integer>();
+  long numBatches;
+
+  public WriteAheadLog(String logFile, int pageSize) throws IOException {
+    this.file = new RandomAccessFile(logFile, "rw");
+    this.file.setLength(0);
+    this.channel = this.file.getChannel();
+    this.pageSize = pageSize;
+    this.batch = ByteBuffer.allocate(BATCH_HEADER_SIZE + 4 * (RECORD_HEADER_SIZE + pageSize));
+    this.batch.position(BATCH_HEADER_SIZE);
+  }
+
+  // Stages the current contents of page for the next batch
+  public void logPage(int pageId, ByteBuffer page) {
+    stage(pageId, IMAGE, this.pageSize).put(page.array(), 0, this.pageSize);
+    this.redoPages.remove(pageId);
+  }
+
+  /*
+   * Stages a redo record of length bytes for pageId and returns the buffer to write it
+   * into, positioned at its first byte; the caller puts exactly length bytes.
+   */
+  public ByteBuffer logRecord(int pageId, int length) {
+    this.redoPages.add(pageId);
+    return stage(pageId, REDO, length);
+  }
+
+  // Whether the page has redo records that its image must cover before it is written back
+  public boolean needsImage(int pageId) {
+    return this.redoPages.contains(pageId);
+  }
+
+  public boolean isStaged(int pageId) {
+    return this.stagedPages.contains(pageId);
+  }
+
+  public boolean hasStaged() {
+    return this.numRecords > 0;
+  }
+
+  private ByteBuffer stage(int pageId, int kind, int length) {
+    if (this.batch.remaining() < RECORD_HEADER_SIZE + length) {
+      int capacity = Math.max(2 * this.batch.capacity(), this.batch.position() + RECORD_HEADER_SIZE + length);
+      ByteBuffer larger = ByteBuffer.allocate(capacity);
+      this.batch.flip();
+      larger.put(this.batch);
+      this.batch = larger;
+    }
+    this.batch.putInt(pageId).putInt(kind).putInt(length);
+    this.stagedPages.add(pageId);
+    this.numRecords++;
+    return this.batch;
+  }
+
+  // Appends the staged records as one batch and forces it to disk; returns the number of records
+  public int commit() throws IOException {
+
+    int numRecords = this.numRecords;
+    if (numRecords == 0) {
+      return 0;
+    }
+
+    int payloadSize = this.batch.position() - BATCH_HEADER_SIZE;
+    CRC32 crc = new CRC32();
+    crc.update(this.batch.array(), BATCH_HEADER_SIZE, payloadSize);
+    this.batch.putInt(0, BATCH_MAGIC);
+    this.batch.putInt(4, numRecords);
+    this.batch.putInt(8, payloadSize);
+    this.batch.putInt(12, (int) crc.getValue());
+
+    this.batch.flip();
+    long position = this.channel.size();
+    while (this.batch.hasRemaining()) {
+      this.channel.write(this.batch, position + this.batch.position());
+    }
+    this.channel.force(false);
+
+    this.batch.clear();
+    this.batch.position(BATCH_HEADER_SIZE);
+    this.numRecords = 0;
+    this.stagedPages.clear();
+    this.numBatches++;
+    return numRecords;
+  }
+
+  // Empties the log once every logged page has reached the index file
+  public void truncate() throws IOException {
+    this.batch.clear();
+    this.batch.position(BATCH_HEADER_SIZE);
+    this.numRecords = 0;
+    this.stagedPages.clear();
+    this.redoPages.clear();
+    this.channel.truncate(0);
+    this.channel.force(false);
+  }
+
+  public void close() throws IOException {
+    this.file.close();
+  }
+
+  /*
+   * Brings target up to date with every complete batch in logFile and forces it. Each
+   * page starts from its last image in the log, or from target if it has none, and redo
+   * applies the redo records logged after that, in log order. Returns the number of
+   * batches replayed.
+   */
+  public static int replay(String logFile, FileChannel target, int pageSize, Redo redo) throws IOException {
+
+    if (!new File(logFile).exists()) {
+      return 0;
+    }
+
+    ArrayList<ByteBuffer> payloads = new ArrayList<ByteBuffer>();
+    RandomAccessFile log = new RandomAccessFile(logFile, "r");
+    try {
+      FileChannel channel = log.getChannel();
+      long position = 0;
+      long length = channel.size();
+      ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER_SIZE);
+
+      while (position + BATCH_HEADER_SIZE <= length) {
+        header.clear();
+        readFully(channel, header, position);
+        int payloadSize = header.getInt(8);
+        if (header.getInt(0) != BATCH_MAGIC || header.getInt(4) <= 0 || payloadSize <= 0
+            || position + BATCH_HEADER_SIZE + payloadSize > length) {
+          break;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+        readFully(channel, payload, position + BATCH_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, payload.capacity());
+        if ((int) crc.getValue() != header.getInt(12)) {
+          break;
+        }
+
+        payloads.add(payload);
+        position += BATCH_HEADER_SIZE + payloadSize;
+      }
+    } finally {
+      log.close();
+    }
+
+    // Where each page's last image is, as a count of records from the start of the log
+    HashMap<Integer, Long> lastImages = new HashMap<Integer, Long>();
+    long recordNumber = 0;
+    for (ByteBuffer payload : payloads) {
+      for (int offset = 0; offset < payload.capacity(); recordNumber++) {
+        if (payload.getInt(offset + 4) == IMAGE) {
+          lastImages.put(payload.getInt(offset), recordNumber);
+        }
+        offset += RECORD_HEADER_SIZE + payload.getInt(offset + 8);
+      }
+    }
+
+    // Then the records from each page's last image on, onto copies of the pages
+    LinkedHashMap<Integer, ByteBuffer> pages = new LinkedHashMap<Integer, ByteBuffer>();
+    recordNumber = 0;
+    for (ByteBuffer payload : payloads) {
+      for (int offset = 0; offset < payload.capacity(); recordNumber++) {
+        int pageId = payload.getInt(offset);
+        int kind = payload.getInt(offset + 4);
+        int length = payload.getInt(offset + 8);
+        ByteBuffer record = ByteBuffer.wrap(payload.array(), offset + RECORD_HEADER_SIZE, length).slice();
+        offset += RECORD_HEADER_SIZE + length;
+
+        Long lastImage = lastImages.get(pageId);
+        if (lastImage != null && recordNumber < lastImage) {
+          continue;
+        }
+        ByteBuffer page = pages.get(pageId);
+        if (page == null) {
+          page = ByteBuffer.allocate(pageSize);
+          long pagePosition = (long) pageId * pageSize;
+          while (kind == REDO && page.hasRemaining() && target.read(page, pagePosition + page.position()) != -1) {
+            // a page past the end of the file stays zero
+          }
+          page.clear();
+          pages.put(pageId, page);
+        }
+        if (kind == IMAGE) {
+          page.put(0, record, 0, pageSize);
+        } else {
+          redo.apply(pageId, page, record);
+        }
+      }
+    }
+
+    for (Map.Entry<Integer, ByteBuffer> entry : pages.entrySet()) {
+      ByteBuffer page = entry.getValue();
+      long pagePosition = (long) entry.getKey() * pageSize;
+      page.clear();
+      while (page.hasRemaining()) {
+        target.write(page, pagePosition + page.position());
+      }
+    }
+
+    target.force(true);
+    return payloads.size();
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) == -1) {
+        throw new IOException("Unexpected end of log");
+      }
+    }
+  }
+
+  // Applies a redo record staged with logRecord to a copy of its page
+  public interface Redo {
+    void apply(int pageId, ByteBuffer page, ByteBuffer record);
+  }
+}
@@ -0,0 +1,115 @@
+// Per-page min/max summaries of the numeric fields of a heap.<pagesize> file
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * dbload writes one entry per heap page to <heap file>.zone as it writes the page:
+ * the min and max of each summarised field over the page's records, as big-endian
+ * longs in the order of COLUMNS. A scan with a range predicate on one of those fields
+ * can then skip every page whose [min, max] misses the range without reading it. Since
+ * rows arrive in time order, a date or id range touches only a few consecutive pages.
+ */
+public class ZoneMap {
+  public static final String SUFFIX = ".zone";
+  public static final String[] COLUMNS = { "id", "date", "year", "mdate", "time", "sensorid", "counts" };
+  public static final int DATE_COLUMN = 1;
+  public static final int ENTRY_SIZE = COLUMNS.length * 2 * Long.BYTES;
+
+  private static final int[] OFFSETS = { constants.ID_OFFSET, constants.DATE_OFFSET, constants.YEAR_OFFSET,
+      constants.MDATE_OFFSET, constants.TIME_OFFSET, constants.SENSORID_OFFSET, constants.COUNTS_OFFSET };
+  private static final int[] SIZES = { constants.ID_SIZE, constants.DATE_SIZE, constants.YEAR_SIZE,
+      constants.MDATE_SIZE, constants.TIME_SIZE, constants.SENSORID_SIZE, constants.COUNTS_SIZE };
+
+  // mins[page * COLUMNS.length + column], likewise maxes
+  long[] mins;
+  long[] maxes;
+
+  private ZoneMap(long[] mins, long[] maxes) {
+    this.mins = mins;
+    this.maxes = maxes;
+  }
+
+  // Index into COLUMNS of a field name, or -1 if the field is not summarised
+  public static int column(String name) {
+    for (int i = 0; i < COLUMNS.length; i++) {
+      if (COLUMNS[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // The value of column in record slot i of a page with the given layout
+  public static long value(ByteBuffer page, PageLayout layout, int i, int column) {
+    int offset = layout.offset(i, OFFSETS[column], SIZES[column]);
+    if (column == DATE_COLUMN) {
+      return page.getLong(offset);
+    }
+    return page.getInt(offset);
+  }
+
+  // The zone map entry for a packed heap page; each column is summarised in one pass over it
+  public static byte[] summarize(ByteBuffer page, PageLayout layout) {
+
+    long[] mins = new long[COLUMNS.length];
+    long[] maxes = new long[COLUMNS.length];
+    Arrays.fill(mins, Long.MAX_VALUE);
+    Arrays.fill(maxes, Long.MIN_VALUE);
+
+    int numRecords = 0;
+    while (numRecords < layout.numRecordsPerPage && !layout.isEmpty(page, numRecords)) {
+      numRecords++;
+    }
+    for (int c = 0; c < COLUMNS.length; c++) {
+      for (int i = 0; i < numRecords; i++) {
+        long v = value(page, layout, i, c);
+        mins[c] = Math.min(mins[c], v);
+        maxes[c] = Math.max(maxes[c], v);
+      }
+    }
+
+    ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+    for (int c = 0; c < COLUMNS.length; c++) {
+      entry.putLong(mins[c]).putLong(maxes[c]);
+    }
+    return entry.array();
+  }
+
+  /*
+   * Reads the zone map of heapFile, or returns null if there is none or it does not
+   * cover exactly numPages pages, e.g. because the heap was appended to without one.
+   */
+  public static ZoneMap load(String heapFile, int numPages) throws IOException {
+
+    File zoneFile = new File(heapFile + SUFFIX);
+    if (!zoneFile.exists() || zoneFile.length() != (long) numPages * ENTRY_SIZE) {
+      return null;
+    }
+
+    ByteBuffer entries = ByteBuffer.allocate(numPages * ENTRY_SIZE);
+    RandomAccessFile file = new RandomAccessFile(zoneFile, "r");
+    try {
+      file.readFully(entries.array());
+    } finally {
+      file.close();
+    }
+
+    long[] mins = new long[numPages * COLUMNS.length];
+    long[] maxes = new long[numPages * COLUMNS.length];
+    for (int i = 0; i < mins.length; i++) {
+      mins[i] = entries.getLong();
+      maxes[i] = entries.getLong();
+    }
+    return new ZoneMap(mins, maxes);
+  }
+
+  // False only if no record on the page can have column in [low, high]
+  public boolean mayContain(int pageId, int column, long low, long high) {
+    int index = pageId * COLUMNS.length + column;
+    return this.mins[index] <= high && this.maxes[index] >= low;
+  }
+}
@@ -46,6 +46,17 @@ public class constants{
     public static final int SENSORNAME_POS = 8;
     public static final int COUNTS_POS = 9;
     public static final int MILLISECONDS_PER_SECOND = 1000000;
+    public static final double BULK_LOAD_FILL_FACTOR = 1.0;
+    public static final int BUFFER_POOL_FRAMES = 1024;
+    public static final String MMAP_FLAG = "-mmap";
+    public static final String RANGE_FLAG = "-range";
+    public static final String PREFIX_FLAG = "-prefix";
+    public static final String INDEX_FLAG = "-index";
+    public static final String PAX_FLAG = "-pax";
+    public static final String COMPRESS_FLAG = "-compress";
+    public static final int LOCATOR_SIZE = 8;
+    public static final int LOAD_CHUNK_SIZE = 1 << 22;
+    public static final int LOAD_PAGES_PER_WRITE = 64;
 
     public static final int ID_OFFSET =   STD_NAME_SIZE;
 
@@ -1,13 +1,18 @@
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class dbload {
 
@@ -26,19 +31,48 @@ public class dbload {
      * counts field = 4 bytes, offset = 108
      * end of record = 111 (inclusive)
      *
-     * Outputs a binary file called heap.pagesize
+     * Outputs a binary file called heap.pagesize, and its per-page zone map
+     * heap.pagesize.zone (see ZoneMap). Records are appended to an existing heap file.
+     * Optional trailing arguments, in any order:
+     * -index   bring index.pagesize up to date with just the appended records, or build
+     *          it if it does not exist yet (see PagedBPlusTree)
+     * -pax     write columnar pages to pax.pagesize instead (see PageLayout)
+     * -compress write each page compressed, to heap.pagesize.z or pax.pagesize.z, with
+     *          a directory of where the pages end (see PageCodec)
      */
     public static void main(String[] args) throws IOException {
 
         // check for correct number of arguments
-        if (args.length != constants.DBLOAD_ARG_COUNT) {
+        if (args.length < constants.DBLOAD_ARG_COUNT) {
             System.out.println("Error: Incorrect number of arguments were input");
             return;
         }
 
+        boolean indexed = false;
+        boolean columnar = false;
+        boolean compressed = false;
+        for (int a = constants.DBLOAD_ARG_COUNT; a < args.length; a++) {
+            if (args[a].equals(constants.INDEX_FLAG)) {
+                indexed = true;
+            } else if (args[a].equals(constants.PAX_FLAG)) {
+                columnar = true;
+            } else if (args[a].equals(constants.COMPRESS_FLAG)) {
+                compressed = true;
+            } else {
+                System.out.println("Error: Incorrect number of arguments were input");
+                return;
+            }
+        }
+        if (indexed && (columnar || compressed)) {
+            System.out.println("Error: the index is built from uncompressed row pages and cannot be used with "
+                    + (columnar ? constants.PAX_FLAG : constants.COMPRESS_FLAG));
+            return;
+        }
+
         int pageSize = Integer.parseInt(args[constants.DBLOAD_PAGE_SIZE_ARG]);
         String datafile = args[constants.DATAFILE_ARG];
-        String outputFileName = "heap." + pageSize;
+        PageLayout layout = new PageLayout(pageSize, columnar);
+        String outputFileName = layout.fileName() + (compressed ? PageCodec.SUFFIX : "");
         int numRecordsLoaded = 0;
         int numberOfPagesUsed = 0;
         long startTime = 0;
@@ -46,88 +80,89 @@ public class dbload {
         boolean exceptionOccurred = false;
         final int numBytesFixedLengthRecord = constants.TOTAL_SIZE;
         int numRecordsPerPage = pageSize/numBytesFixedLengthRecord;
-        SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy hh:mm:ss a");
+        int numThreads = Runtime.getRuntime().availableProcessors();
 
-        BufferedReader reader = null;
+        FileInputStream inputStream = null;
         FileOutputStream outputStream = null;
-        ByteArrayOutputStream byteOutputStream = null;
-        DataOutputStream dataOutput = null;
+        FileOutputStream zoneStream = null;
+        FileOutputStream directoryStream = null;
+        long numBytesWritten = 0;
+        PageWriter writer = null;
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
 
         try {
 
-            reader = new BufferedReader(new FileReader(datafile));
+            inputStream = new FileInputStream(datafile);
             outputStream = new FileOutputStream(outputFileName, true);
-            byteOutputStream = new ByteArrayOutputStream();
-            dataOutput = new DataOutputStream(byteOutputStream);
+            zoneStream = new FileOutputStream(outputFileName + ZoneMap.SUFFIX, true);
 
             startTime = System.nanoTime();
 
-            // read in the header line (not processed further, as datafile fieldnames are known)
-            String line = reader.readLine();
-
-            // read in lines while not the end of file
-            while ((line = reader.readLine()) != null) {
-
-                String[] valuesAsStrings = line.split(",");
-
-                // Convert data into relevant data types
-                int id = Integer.parseInt(valuesAsStrings[constants.ID_POS]);
-                String dateTimeString = valuesAsStrings[constants.DATETIME_POS];
-                int year = Integer.parseInt(valuesAsStrings[constants.YEAR_POS]);
-                String month = valuesAsStrings[constants.MONTH_POS];
-                int mdate = Integer.parseInt(valuesAsStrings[constants.MDATE_POS]);
-                String day = valuesAsStrings[constants.DAY_POS];
-                int time = Integer.parseInt(valuesAsStrings[constants.TIME_POS]);
-                String sensorIdString = valuesAsStrings[constants.SENSORID_POS];
-                String sensorName = valuesAsStrings[constants.SENSORNAME_POS];
-                int counts = Integer.parseInt(valuesAsStrings[constants.COUNTS_POS]);
-                String sdtName = sensorIdString + dateTimeString;
-                int sensorId = Integer.parseInt(sensorIdString);
-                System.out.println(dateTimeString);
-                // parse datetime field into a date object, then get long datatype representation
-                Date date = dateFormat.parse(dateTimeString);
-                long dateTimeLongRep = date.getTime();
-
-                // Write bytes to data output stream
-                dataOutput.writeBytes(getStringOfLength(sdtName, constants.STD_NAME_SIZE));
-                dataOutput.writeInt(id);
-                dataOutput.writeLong(dateTimeLongRep);
-                dataOutput.writeInt(year);
-                dataOutput.writeBytes(getStringOfLength(month, constants.MONTH_SIZE));
-                dataOutput.writeInt(mdate);
-                dataOutput.writeBytes(getStringOfLength(day, constants.DAY_SIZE));
-                dataOutput.writeInt(time);
-                dataOutput.writeInt(sensorId);
-                dataOutput.writeBytes(getStringOfLength(sensorName, constants.SENSORNAME_SIZE));
-                dataOutput.writeInt(counts);
-
-                numRecordsLoaded++;
-                // check if a new page is needed
-                if (numRecordsLoaded % numRecordsPerPage == 0) {
-                    dataOutput.flush();
-                    // Get the byte array of loaded records, copy to an empty page and writeout
-                    byte[] page = new byte[pageSize];
-                    byte[] records = byteOutputStream.toByteArray();
-                    int numberBytesToCopy = byteOutputStream.size();
-                    System.arraycopy(records, 0, page, 0, numberBytesToCopy);
-                    writeOut(outputStream, page);
-                    numberOfPagesUsed++;
-                    byteOutputStream.reset();
-                }
+            /*
+             * Pipeline: this thread reads the csv in large chunks cut at line boundaries and
+             * hands each chunk to a worker, which parses its rows into fixed-length records.
+             * Finished chunks are taken back in file order and packed into pages, so the heap
+             * file comes out exactly as a single-threaded load would write it. At most two
+             * chunks per worker are in flight at a time.
+             */
+            ArrayDeque<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+            writer = new PageWriter(outputStream.getChannel(), zoneStream.getChannel(), layout);
+            if (compressed) {
+                directoryStream = new FileOutputStream(outputFileName + PageCodec.DIRECTORY_SUFFIX, true);
+                writer.compressInto(directoryStream.getChannel());
             }
+            byte[] carry = new byte[0];
+            boolean firstChunk = true;
+            boolean endOfFile = false;
+
+            while (!endOfFile || !pending.isEmpty()) {
 
-            // At end of csv, check if there are records in the current page to be written out
-            if (numRecordsLoaded % numRecordsPerPage != 0) {
-                dataOutput.flush();
-                byte[] page = new byte[pageSize];
-                byte[] records = byteOutputStream.toByteArray();
-                int numberBytesToCopy = byteOutputStream.size();
-                System.arraycopy(records, 0, page, 0, numberBytesToCopy);
-                writeOut(outputStream, page);
-                numberOfPagesUsed++;
-                byteOutputStream.reset();
+                if (!endOfFile && pending.size() < 2 * numThreads) {
+                    // fill a chunk after the partial line left over from the previous one
+                    byte[] chunk = Arrays.copyOf(carry, Math.max(constants.LOAD_CHUNK_SIZE, 2 * carry.length));
+                    int length = carry.length;
+                    while (length < chunk.length) {
+                        int n = inputStream.read(chunk, length, chunk.length - length);
+                        if (n == -1) {
+                            endOfFile = true;
+                            break;
+                        }
+                        length += n;
+                    }
+
+                    /*
+                     * The chunk ends after its last complete line, unless the file ends first.
+                     * Lines may end at "\r" alone, but a "\r" in the last byte read may be the
+                     * first half of a "\r\n", so that line is carried over whole.
+                     */
+                    int end = length;
+                    if (!endOfFile) {
+                        while (end > 0 && chunk[end - 1] != '\n' && (chunk[end - 1] != '\r' || end == length)) {
+                            end--;
+                        }
+                    }
+                    if (end == 0 && !endOfFile) {
+                        // no line break yet: keep reading into a larger chunk
+                        carry = Arrays.copyOf(chunk, length);
+                        continue;
+                    }
+                    carry = Arrays.copyOfRange(chunk, end, length);
+
+                    pending.add(workers.submit(new ParseTask(chunk, end, firstChunk)));
+                    firstChunk = false;
+                    continue;
+                }
+
+                // pack the oldest chunk's records into pages
+                writer.append(pending.poll().get());
             }
 
+            // At end of csv, write out the last, partly filled page
+            writer.finish();
+            numRecordsLoaded = writer.numRecords;
+            numberOfPagesUsed = writer.numPages;
+            numBytesWritten = writer.numBytes;
+
             finishTime = System.nanoTime();
         }
         catch (FileNotFoundException e) {
@@ -138,23 +173,52 @@ public class dbload {
             System.err.println("Error: IOExeption " + e.getMessage());
             exceptionOccurred = true;
         }
-        catch (ParseException e) {
-            System.err.println("Parse error when parsing date: " + e.getMessage());
+        catch (InterruptedException e) {
+            System.err.println("Error: Interrupted while loading");
+            exceptionOccurred = true;
         }
-        finally {
-            // close input/output streams
-            if (reader != null) {
-                reader.close();
+        catch (ExecutionException e) {
+            // a worker failed on a row; keep the pages filled before it, as the single-threaded loader did
+            Throwable cause = e.getCause();
+            try {
+                if (cause instanceof BadRowException) {
+                    writer.append(((BadRowException) cause).records);
+                    cause = cause.getCause();
+                }
+                writer.flushFullPages();
+                numRecordsLoaded = writer.numRecords;
+                numberOfPagesUsed = writer.numPages;
+                numBytesWritten = writer.numBytes;
+            } catch (IOException ioe) {
+                System.err.println("Error: IOExeption " + ioe.getMessage());
+                exceptionOccurred = true;
             }
-            if (dataOutput != null) {
-                dataOutput.close();
+
+            // then report it as the single-threaded loader would have
+            if (cause instanceof ParseException) {
+                System.err.println("Parse error when parsing date: " + cause.getMessage());
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                System.err.println("Error: " + cause);
+                exceptionOccurred = true;
             }
-            if (byteOutputStream != null) {
-                byteOutputStream.close();
+        }
+        finally {
+            // close input/output streams
+            workers.shutdownNow();
+            if (inputStream != null) {
+                inputStream.close();
             }
             if (outputStream != null) {
                 outputStream.close();
             }
+            if (zoneStream != null) {
+                zoneStream.close();
+            }
+            if (directoryStream != null) {
+                directoryStream.close();
+            }
         }
 
         // print out stats if all operations succeeded
@@ -164,36 +228,435 @@ public class dbload {
             System.out.println("The number of pages used: " + numberOfPagesUsed);
             long timeInMilliseconds = (finishTime - startTime)/constants.MILLISECONDS_PER_SECOND;
             System.out.println("Time taken: " + timeInMilliseconds + " ms");
+            if (compressed) {
+                long uncompressedBytes = (long) numberOfPagesUsed * pageSize;
+                System.out.println("Compressed size: " + numBytesWritten + " bytes, "
+                        + (uncompressedBytes == 0 ? 0 : 100 * numBytesWritten / uncompressedBytes) + "% of "
+                        + uncompressedBytes);
+            }
+
+            if (indexed) {
+                updateIndex(pageSize, outputFileName);
+            }
+        }
+    }
+
+    // Adds the records just appended to index.pagesize, building the index on first use
+    private static void updateIndex(int pageSize, String heapFile) throws IOException {
+
+        String indexFile = "index." + pageSize;
+        long startTime = System.nanoTime();
+        PagedBPlusTree tree = null;
+
+        try {
+            long added;
+            if (new File(indexFile).exists()) {
+                tree = PagedBPlusTree.open(indexFile);
+                added = tree.refresh(heapFile);
+            } else {
+                tree = PagedBPlusTree.build(indexFile, heapFile, pageSize, constants.BULK_LOAD_FILL_FACTOR);
+                added = tree.size();
+            }
+            long timeInMilliseconds = (System.nanoTime() - startTime)/constants.MILLISECONDS_PER_SECOND;
+            System.out.println("Records added to " + indexFile + ": " + added + " in " + timeInMilliseconds + " ms");
+        }
+        catch (IOException e) {
+            System.err.println("Error: could not update " + indexFile + ": " + e.getMessage());
+        }
+        finally {
+            if (tree != null) {
+                tree.close();
+            }
+        }
+    }
+
+    /*
+     * Parses the csv lines of one chunk into consecutive fixed-length records. Lines end
+     * at "\n", "\r\n" or "\r" as with BufferedReader.readLine, and the header line is
+     * skipped in the first chunk. Rows are parsed and encoded straight from the chunk's
+     * bytes; a row that is not plain ASCII or does not parse on that path is decoded to
+     * a String and loaded as the original String-based loader did, so the output is the
+     * same either way. A row that fails, with a bad date, a bad integer or too few fields,
+     * ends the chunk with a BadRowException holding the rows before it.
+     */
+    static class ParseTask implements Callable<ByteBuffer> {
+        // SimpleDateFormat is not thread-safe, so every worker keeps its own parser
+        private static final ThreadLocal<DateTimeParser> dateParser =
+                ThreadLocal.withInitial(DateTimeParser::new);
+
+        byte[] chunk;
+        int length;
+        boolean skipHeader;
+        // start of each field of the current row and the end of the last one
+        int[] fieldStarts = new int[constants.COUNTS_POS + 2];
+
+        ParseTask(byte[] chunk, int length, boolean skipHeader) {
+            this.chunk = chunk;
+            this.length = length;
+            this.skipHeader = skipHeader;
+        }
+
+        public ByteBuffer call() throws IOException, BadRowException {
+
+            // size the output for one record per line
+            int numLines = 1;
+            for (int i = 0; i < this.length; i++) {
+                if (this.chunk[i] == '\n' || this.chunk[i] == '\r') {
+                    numLines++;
+                }
+            }
+            ByteBuffer records = ByteBuffer.allocate(numLines * constants.TOTAL_SIZE);
+            DateTimeParser parser = dateParser.get();
+
+            int start = 0;
+            int base = 0;
+            boolean header = this.skipHeader;
+            while (start < this.length) {
+                int end = start;
+                while (end < this.length && this.chunk[end] != '\n' && this.chunk[end] != '\r') {
+                    end++;
+                }
+                int lineStart = start;
+                start = end + 1;
+                if (end < this.length && this.chunk[end] == '\r' && start < this.length
+                        && this.chunk[start] == '\n') {
+                    start++;
+                }
+
+                // read in the header line (not processed further, as datafile fieldnames are known)
+                if (header) {
+                    header = false;
+                    continue;
+                }
+                try {
+                    if (!encodeRecord(lineStart, end, records, base, parser)) {
+                        encodeLine(new String(this.chunk, lineStart, end - lineStart), records, base, parser);
+                    }
+                } catch (ParseException | RuntimeException e) {
+                    records.limit(base);
+                    throw new BadRowException(e, records);
+                }
+                base += constants.TOTAL_SIZE;
+            }
+
+            records.limit(base);
+            return records;
+        }
+
+        /*
+         * Encodes the csv line in chunk[start, end) as a record at base within records.
+         * Returns false, having written nothing, if the line needs the String path: a
+         * byte outside ASCII, fewer than ten fields or an integer field that is not
+         * plain digits.
+         */
+        private boolean encodeRecord(int start, int end, ByteBuffer records, int base, DateTimeParser parser)
+                throws ParseException {
+
+            byte[] line = this.chunk;
+            int numFields = 0;
+            this.fieldStarts[numFields++] = start;
+            for (int i = start; i < end; i++) {
+                if (line[i] < 0) {
+                    return false;
+                }
+                if (line[i] == ',' && numFields < this.fieldStarts.length) {
+                    this.fieldStarts[numFields++] = i + 1;
+                }
+            }
+            if (numFields < this.fieldStarts.length) {
+                // fewer than ten fields, or no comma after the last one: the counts field runs to the end
+                if (numFields < constants.COUNTS_POS + 1) {
+                    return false;
+                }
+                this.fieldStarts[numFields] = end + 1;
+            }
+
+            long id = parseInt(line, constants.ID_POS);
+            long year = parseInt(line, constants.YEAR_POS);
+            long mdate = parseInt(line, constants.MDATE_POS);
+            long time = parseInt(line, constants.TIME_POS);
+            long sensorId = parseInt(line, constants.SENSORID_POS);
+            long counts = parseInt(line, constants.COUNTS_POS);
+            if (id == NOT_AN_INT || year == NOT_AN_INT || mdate == NOT_AN_INT || time == NOT_AN_INT
+                    || sensorId == NOT_AN_INT || counts == NOT_AN_INT) {
+                return false;
+            }
+            long dateTimeLongRep = parser.parse(line, fieldStart(constants.DATETIME_POS),
+                    fieldEnd(constants.DATETIME_POS));
+
+            // SDT_NAME is the sensor id followed by the date and time, cut or padded to size
+            int sensorIdLength = fieldEnd(constants.SENSORID_POS) - fieldStart(constants.SENSORID_POS);
+            putText(records, base, line, fieldStart(constants.SENSORID_POS), fieldEnd(constants.SENSORID_POS),
+                    constants.STD_NAME_SIZE);
+            if (sensorIdLength < constants.STD_NAME_SIZE) {
+                putText(records, base + sensorIdLength, line, fieldStart(constants.DATETIME_POS),
+                        fieldEnd(constants.DATETIME_POS), constants.STD_NAME_SIZE - sensorIdLength);
+            }
+            records.putInt(base + constants.ID_OFFSET, (int) id);
+            records.putLong(base + constants.DATE_OFFSET, dateTimeLongRep);
+            records.putInt(base + constants.YEAR_OFFSET, (int) year);
+            putText(records, base + constants.MONTH_OFFSET, line, fieldStart(constants.MONTH_POS),
+                    fieldEnd(constants.MONTH_POS), constants.MONTH_SIZE);
+            records.putInt(base + constants.MDATE_OFFSET, (int) mdate);
+            putText(records, base + constants.DAY_OFFSET, line, fieldStart(constants.DAY_POS),
+                    fieldEnd(constants.DAY_POS), constants.DAY_SIZE);
+            records.putInt(base + constants.TIME_OFFSET, (int) time);
+            records.putInt(base + constants.SENSORID_OFFSET, (int) sensorId);
+            putText(records, base + constants.SENSORNAME_OFFSET, line, fieldStart(constants.SENSORNAME_POS),
+                    fieldEnd(constants.SENSORNAME_POS), constants.SENSORNAME_SIZE);
+            records.putInt(base + constants.COUNTS_OFFSET, (int) counts);
+            return true;
+        }
+
+        private int fieldStart(int field) {
+            return this.fieldStarts[field];
+        }
+
+        private int fieldEnd(int field) {
+            return this.fieldStarts[field + 1] - 1;
+        }
+
+        // Value of an integer field of up to nine digits with an optional sign, or NOT_AN_INT
+        private long parseInt(byte[] line, int field) {
+            int i = fieldStart(field);
+            int end = fieldEnd(field);
+            boolean negative = i < end && line[i] == '-';
+            if (i < end && (line[i] == '-' || line[i] == '+')) {
+                i++;
+            }
+            if (i == end || end - i > 9) {
+                return NOT_AN_INT;
+            }
+            long value = 0;
+            for (; i < end; i++) {
+                int d = line[i] - '0';
+                if (d < 0 || d > 9) {
+                    return NOT_AN_INT;
+                }
+                value = value * 10 + d;
+            }
+            return negative ? -value : value;
         }
     }
 
-    // Writes out a byte array to file using a FileOutputStream
-    public static void writeOut(FileOutputStream stream, byte[] byteArray)
-            throws FileNotFoundException, IOException {
+    private static final long NOT_AN_INT = Long.MIN_VALUE;
+
+    // A row of a chunk failed to load; the cause is its error and records holds the rows before it
+    static class BadRowException extends Exception {
+        private static final long serialVersionUID = 1L;
 
-        stream.write(byteArray);
+        ByteBuffer records;
+
+        BadRowException(Exception cause, ByteBuffer records) {
+            super(cause);
+            this.records = records;
+        }
     }
 
-    // Returns a whitespace padded string of the same length as parameter int length
-    public static String getStringOfLength(String original, int length) {
+    // Converts one csv line into a fixed-length record at base within records
+    static void encodeLine(String line, ByteBuffer records, int base, DateTimeParser parser)
+            throws ParseException {
 
-        int lengthDiff = length - original.length();
+        String[] valuesAsStrings = line.split(",");
 
-        // Check difference in string lengths
-        if (lengthDiff == 0) {
-            return original;
+        // Convert data into relevant data types
+        int id = Integer.parseInt(valuesAsStrings[constants.ID_POS]);
+        String dateTimeString = valuesAsStrings[constants.DATETIME_POS];
+        int year = Integer.parseInt(valuesAsStrings[constants.YEAR_POS]);
+        String month = valuesAsStrings[constants.MONTH_POS];
+        int mdate = Integer.parseInt(valuesAsStrings[constants.MDATE_POS]);
+        String day = valuesAsStrings[constants.DAY_POS];
+        int time = Integer.parseInt(valuesAsStrings[constants.TIME_POS]);
+        String sensorIdString = valuesAsStrings[constants.SENSORID_POS];
+        String sensorName = valuesAsStrings[constants.SENSORNAME_POS];
+        int counts = Integer.parseInt(valuesAsStrings[constants.COUNTS_POS]);
+        String sdtName = sensorIdString + dateTimeString;
+        int sensorId = Integer.parseInt(sensorIdString);
+        // parse datetime field into its long millisecond representation
+        long dateTimeLongRep = parser.parse(dateTimeString);
+
+        // Write the fields at their offsets; text keeps the low byte of each char
+        putText(records, base, sdtName, constants.STD_NAME_SIZE);
+        records.putInt(base + constants.ID_OFFSET, id);
+        records.putLong(base + constants.DATE_OFFSET, dateTimeLongRep);
+        records.putInt(base + constants.YEAR_OFFSET, year);
+        putText(records, base + constants.MONTH_OFFSET, month, constants.MONTH_SIZE);
+        records.putInt(base + constants.MDATE_OFFSET, mdate);
+        putText(records, base + constants.DAY_OFFSET, day, constants.DAY_SIZE);
+        records.putInt(base + constants.TIME_OFFSET, time);
+        records.putInt(base + constants.SENSORID_OFFSET, sensorId);
+        putText(records, base + constants.SENSORNAME_OFFSET, sensorName, constants.SENSORNAME_SIZE);
+        records.putInt(base + constants.COUNTS_OFFSET, counts);
+    }
+
+    // Writes bytes [start, end) of text at offset, cut to size or padded with spaces
+    static void putText(ByteBuffer records, int offset, byte[] text, int start, int end, int size) {
+        int length = Math.min(end - start, size);
+        records.put(offset, text, start, length);
+        for (int i = length; i < size; i++) {
+            records.put(offset + i, (byte) ' ');
+        }
+    }
+
+    // Same as above for a String, one byte per char
+    static void putText(ByteBuffer records, int offset, String text, int size) {
+        int length = Math.min(text.length(), size);
+        for (int i = 0; i < length; i++) {
+            records.put(offset + i, (byte) text.charAt(i));
         }
-        else if (lengthDiff > 0) {
-            // if original string is too short, pad end with whitespace
-            StringBuilder string = new StringBuilder(original);
-            for (int i = 0; i < lengthDiff; i++) {
-                string.append(" ");
+        for (int i = length; i < size; i++) {
+            records.put(offset + i, (byte) ' ');
+        }
+    }
+
+    /*
+     * Packs records into pages and writes them to the heap file, with their zone map
+     * entries, constants.LOAD_PAGES_PER_WRITE pages at a time. The page buffers are reused
+     * for the whole load and each batch goes out in one gathering write. Records arrive
+     * row-major and each full page is rearranged into the writer's layout. When
+     * compressing, each page is compressed as it fills and the batch goes out as one
+     * buffer of compressed pages, with the end offset of each in the directory.
+     */
+    static class PageWriter {
+        FileChannel channel;
+        FileChannel zoneChannel;
+        PageLayout layout;
+        byte[] scratch;
+        int pageSize;
+        int numRecordsPerPage;
+        ByteBuffer[] pages;
+        ByteBuffer zoneEntries;
+        int numPagesInBatch;
+        int numRecordsInPage;
+        int numRecords;
+        int numPages;
+        long numBytes;
+        // set when compressing
+        PageCodec codec;
+        FileChannel directoryChannel;
+        ByteBuffer compressedPages;
+        ByteBuffer pageEnds;
+        byte[] compressedPage;
+        long fileEnd;
+
+        PageWriter(FileChannel channel, FileChannel zoneChannel, PageLayout layout) {
+            int pageSize = layout.pageSize;
+            this.channel = channel;
+            this.zoneChannel = zoneChannel;
+            this.layout = layout;
+            this.scratch = new byte[pageSize];
+            this.pageSize = pageSize;
+            this.numRecordsPerPage = pageSize / constants.TOTAL_SIZE;
+            this.pages = new ByteBuffer[constants.LOAD_PAGES_PER_WRITE];
+            for (int i = 0; i < this.pages.length; i++) {
+                this.pages[i] = ByteBuffer.allocateDirect(pageSize);
+            }
+            this.zoneEntries = ByteBuffer.allocate(this.pages.length * ZoneMap.ENTRY_SIZE);
+        }
+
+        // Compresses every page from here on, recording where each ends on directoryChannel
+        void compressInto(FileChannel directoryChannel) throws IOException {
+            this.codec = new PageCodec(this.layout);
+            this.directoryChannel = directoryChannel;
+            this.compressedPage = new byte[this.codec.maxCompressedLength()];
+            this.compressedPages = ByteBuffer.allocate(this.pages.length * this.compressedPage.length);
+            this.pageEnds = ByteBuffer.allocate(this.pages.length * Long.BYTES);
+            // the heap file is opened for appending, so its channel starts at its end
+            this.fileEnd = this.channel.position();
+        }
+
+        // Appends the records between position and limit, in order
+        void append(ByteBuffer records) throws IOException {
+            byte[] slab = records.array();
+            int offset = records.position();
+            int end = records.limit();
+
+            while (offset < end) {
+                ByteBuffer page = this.pages[this.numPagesInBatch];
+                int count = Math.min(this.numRecordsPerPage - this.numRecordsInPage,
+                        (end - offset) / constants.TOTAL_SIZE);
+                page.put(this.numRecordsInPage * constants.TOTAL_SIZE, slab, offset, count * constants.TOTAL_SIZE);
+                offset += count * constants.TOTAL_SIZE;
+                this.numRecordsInPage += count;
+                this.numRecords += count;
+
+                // check if a new page is needed
+                if (this.numRecordsInPage == this.numRecordsPerPage) {
+                    endPage();
+                }
+            }
+        }
+
+        // Writes out everything appended, zero-filling the rest of a partly filled last page
+        void finish() throws IOException {
+            if (this.numRecordsInPage > 0) {
+                ByteBuffer page = this.pages[this.numPagesInBatch];
+                int used = this.numRecordsInPage * constants.TOTAL_SIZE;
+                page.put(used, new byte[this.pageSize - used]);
+                endPage();
             }
-            return string.toString();
+            flush();
         }
-        else {
-            // if original string is too long, shorten to required length
-            return original.substring(0, length);
+
+        /*
+         * Writes out the full pages not yet written, with their zone map and directory
+         * entries, and drops the records of a partly filled last page. Used when a row
+         * fails to parse, which has always ended the load without its last page.
+         */
+        void flushFullPages() throws IOException {
+            this.numRecordsInPage = 0;
+            flush();
+        }
+
+        private void endPage() throws IOException {
+            ByteBuffer page = this.pages[this.numPagesInBatch];
+            this.layout.fromRows(page, this.scratch);
+            this.zoneEntries.put(ZoneMap.summarize(page, this.layout));
+            if (this.codec != null) {
+                int length = this.codec.compress(page, this.compressedPage);
+                this.compressedPages.put(this.compressedPage, 0, length);
+                this.fileEnd += length;
+                this.pageEnds.putLong(this.fileEnd);
+            }
+            this.numPagesInBatch++;
+            this.numPages++;
+            this.numRecordsInPage = 0;
+            if (this.numPagesInBatch == this.pages.length) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            for (int i = 0; i < this.numPagesInBatch; i++) {
+                this.pages[i].clear();
+            }
+            if (this.codec == null) {
+                long remaining = (long) this.numPagesInBatch * this.pageSize;
+                this.numBytes += remaining;
+                while (remaining > 0) {
+                    remaining -= this.channel.write(this.pages, 0, this.numPagesInBatch);
+                }
+            } else {
+                this.compressedPages.flip();
+                this.numBytes += this.compressedPages.remaining();
+                while (this.compressedPages.hasRemaining()) {
+                    this.channel.write(this.compressedPages);
+                }
+                this.compressedPages.clear();
+
+                this.pageEnds.flip();
+                while (this.pageEnds.hasRemaining()) {
+                    this.directoryChannel.write(this.pageEnds);
+                }
+                this.pageEnds.clear();
+            }
+
+            this.zoneEntries.flip();
+            while (this.zoneEntries.hasRemaining()) {
+                this.zoneChannel.write(this.zoneEntries);
+            }
+            this.zoneEntries.clear();
+            this.numPagesInBatch = 0;
         }
     }
 }
\ No newline at end of file
@@ -1,17 +1,27 @@
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
 public class dbquery {
 
-    // Reads in a binary file of the argument-specified pagesize, prints out matching records
+    /*
+     * Reads in a binary file of the argument-specified pagesize, prints out matching records.
+     * Optional trailing arguments, in any order:
+     * -mmap                    read the heap file through a memory mapping
+     * -prefix                  match text against the start of SDT_NAME rather than anywhere in it
+     * -pax                     scan the columnar pax.pagesize written by dbload -pax
+     * -compress                scan the compressed file written by dbload -compress; pages
+     *                          are decompressed as they are read, and -mmap is ignored
+     * -range field low high    only records with field in [low, high], where field is one
+     *                          of ZoneMap.COLUMNS and date bounds are "MM/dd/yyyy hh:mm:ss a"
+     */
     public static void main(String[] args) throws IOException {
 
         // check for correct number of arguments
-        if (args.length != constants.DBQUERY_ARG_COUNT) {
+        if (args.length < constants.DBQUERY_ARG_COUNT) {
             System.out.println("Error: Incorrect number of arguments were input");
             return;
         }
@@ -19,93 +29,140 @@ public class dbquery {
         String text = args[0];
         int pageSize = Integer.parseInt(args[constants.DBQUERY_PAGE_SIZE_ARG]);
 
-        String datafile = "heap." + pageSize;
         long startTime = 0;
         long finishTime = 0;
-        int numBytesInOneRecord = constants.TOTAL_SIZE;
         int numBytesInSdtnameField = constants.STD_NAME_SIZE;
-        int numBytesIntField = Integer.BYTES;
-        int numRecordsPerPage = pageSize/numBytesInOneRecord;
+        int numRecordsPerPage = pageSize/constants.TOTAL_SIZE;
         SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy hh:mm:ss a");
-        byte[] page = new byte[pageSize];
-        FileInputStream inStream = null;
+        PageSource heap = null;
+
+        boolean mapped = false;
+        boolean prefix = false;
+        boolean columnar = false;
+        boolean compressed = false;
+        int rangeColumn = -1;
+        long rangeLow = 0;
+        long rangeHigh = 0;
+        for (int a = constants.DBQUERY_ARG_COUNT; a < args.length; a++) {
+            if (args[a].equals(constants.MMAP_FLAG)) {
+                mapped = true;
+            } else if (args[a].equals(constants.PREFIX_FLAG)) {
+                prefix = true;
+            } else if (args[a].equals(constants.PAX_FLAG)) {
+                columnar = true;
+            } else if (args[a].equals(constants.COMPRESS_FLAG)) {
+                compressed = true;
+            } else if (args[a].equals(constants.RANGE_FLAG) && a + 3 < args.length
+                    && ZoneMap.column(args[a + 1]) >= 0) {
+                rangeColumn = ZoneMap.column(args[a + 1]);
+                try {
+                    rangeLow = parseBound(args[a + 2], rangeColumn, dateFormat);
+                    rangeHigh = parseBound(args[a + 3], rangeColumn, dateFormat);
+                } catch (ParseException | NumberFormatException e) {
+                    System.out.println("Error: Invalid range bound " + e.getMessage());
+                    return;
+                }
+                a += 3;
+            } else {
+                System.out.println("Error: Incorrect number of arguments were input");
+                return;
+            }
+        }
+
+        PageLayout layout = new PageLayout(pageSize, columnar);
+        String datafile = layout.fileName() + (compressed ? PageCodec.SUFFIX : "");
 
         try {
-            inStream = new FileInputStream(datafile);
-            int numBytesRead = 0;
+            if (compressed) {
+                // skipped pages are never read or decompressed
+                heap = new CompressedHeapFile(datafile, layout);
+            } else {
+                heap = mapped ? new MappedHeapFile(datafile, pageSize) : new HeapFile(datafile, pageSize);
+            }
+            int numPages = heap.numPages();
+            // pages whose zone map entry misses the range are never read
+            ZoneMap zoneMap = (rangeColumn >= 0) ? ZoneMap.load(datafile, numPages) : null;
+            SdtNameMatcher matcher = new SdtNameMatcher(text, prefix);
             startTime = System.nanoTime();
-            // Create byte arrays for each field
+            // Create byte arrays for the text fields; numeric fields are read in place
             byte[] sdtnameBytes = new byte[numBytesInSdtnameField];
-            byte[] idBytes = new byte[constants.ID_SIZE];
-            byte[] dateBytes = new byte[constants.DATE_SIZE];
-            byte[] yearBytes = new byte[constants.YEAR_SIZE];
             byte[] monthBytes = new byte[constants.MONTH_SIZE];
-            byte[] mdateBytes = new byte[constants.MDATE_SIZE];
             byte[] dayBytes = new byte[constants.DAY_SIZE];
-            byte[] timeBytes = new byte[constants.TIME_SIZE];
-            byte[] sensorIdBytes = new byte[constants.SENSORID_SIZE];
             byte[] sensorNameBytes = new byte[constants.SENSORNAME_SIZE];
-            byte[] countsBytes = new byte[constants.COUNTS_SIZE];
 
             // until the end of the binary file is reached
-            while ((numBytesRead = inStream.read(page)) != -1) {
+            for (int pageId = 0; pageId < numPages; pageId++) {
+                if (zoneMap != null && !zoneMap.mayContain(pageId, rangeColumn, rangeLow, rangeHigh)) {
+                    continue;
+                }
+
+                // pages come from the buffer pool or straight from the mapping
+                ByteBuffer page = heap.fetchPage(pageId);
+
                 // Process each record in page
                 for (int i = 0; i < numRecordsPerPage; i++) {
-                    // Copy record's SdtName (field is located at multiples of the total record byte length)
-                    System.arraycopy(page, (i*numBytesInOneRecord), sdtnameBytes, 0, numBytesInSdtnameField);
+                    // Fields are located through the layout; in a PAX page each filter reads one column
+                    int sdtnameOffset = layout.offset(i, 0, numBytesInSdtnameField);
 
                     // Check if field is empty; if so, end of all records found (packed organisation)
-                    if (sdtnameBytes[0] == 0) {
+                    if (page.get(sdtnameOffset) == 0) {
                         // can stop checking records
                         break;
                     }
 
-                    // Check for match to "text"
-                    String sdtNameString = new String(sdtnameBytes);
-                    String sFormat = String.format("(.*)%s(.*)", text); 
-                    
-                    // if match is found, copy bytes of other fields and print out the record
-                    //if (sdtNameString.matches(sFormat)) {
-                        /*
-                         * Fixed Length Records (total size = 112 bytes):
-                         * SDT_NAME field = 24 bytes, offset = 0
-                         * id field = 4 bytes, offset = 24
-                         * date field = 8 bytes, offset = 28
-                         * year field = 4 bytes, offset = 36
-                         * month field = 9 bytes, offset = 40
-                         * mdate field = 4 bytes, offset = 49
-                         * day field = 9 bytes, offset = 53
-                         * time field = 4 bytes, offset = 62
-                         * sensorid field = 4 bytes, offset = 66
-                         * sensorname field = 38 bytes, offset = 70
-                         * counts field = 4 bytes, offset = 108
-                         *
-                         * Copy the corresponding sections of "page" to the individual field byte arrays
-                         */
-                        System.arraycopy(page, ((i*numBytesInOneRecord) + constants.ID_OFFSET), idBytes, 0, numBytesIntField);
-                        System.arraycopy(page, ((i*numBytesInOneRecord) + constants.DATE_OFFSET), dateBytes, 0, constants.DATE_SIZE);
-                        System.arraycopy(page, ((i*numBytesInOneRecord) + constants.YEAR_OFFSET), yearBytes, 0, numBytesIntField);
-                        System.arraycopy(page, ((i*numBytesInOneRecord) + constants.MONTH_OFFSET), monthBytes, 0, constants.MONTH_SIZE);
-                        System.arraycopy(page, ((i*numBytesInOneRecord) + constants.MDATE_OFFSET), mdateBytes, 0, numBytesIntField);
-                        System.arraycopy(page, ((i*numBytesInOneRecord) + constants.DAY_OFFSET), dayBytes, 0, constants.DAY_SIZE);
-                        System.arraycopy(page, ((i*numBytesInOneRecord) + constants.TIME_OFFSET), timeBytes, 0, numBytesIntField);
-                        System.arraycopy(page, ((i*numBytesInOneRecord) + constants.SENSORID_OFFSET), sensorIdBytes, 0, numBytesIntField);
-                        System.arraycopy(page, ((i*numBytesInOneRecord) + constants.SENSORNAME_OFFSET), sensorNameBytes, 0, constants.SENSORNAME_SIZE);
-                        System.arraycopy(page, ((i*numBytesInOneRecord) + constants.COUNTS_OFFSET), countsBytes, 0, numBytesIntField);
-
-                        // Convert long data into Date object
-                        Date date = new Date(ByteBuffer.wrap(dateBytes).getLong());
-
-                        // Get a string representation of the record for printing to stdout
-                        String record = sdtNameString.trim() + "," + ByteBuffer.wrap(idBytes).getInt()
-                                + "," + dateFormat.format(date) + "," + ByteBuffer.wrap(yearBytes).getInt() +
-                                "," + new String(monthBytes).trim() + "," + ByteBuffer.wrap(mdateBytes).getInt()
-                                + "," + new String(dayBytes).trim() + "," + ByteBuffer.wrap(timeBytes).getInt()
-                                + "," + ByteBuffer.wrap(sensorIdBytes).getInt() + "," +
-                                new String(sensorNameBytes).trim() + "," + ByteBuffer.wrap(countsBytes).getInt();
-                        System.out.println(record);
+                    if (rangeColumn >= 0) {
+                        long v = ZoneMap.value(page, layout, i, rangeColumn);
+                        if (v < rangeLow || v > rangeHigh) {
+                            continue;
+                        }
                     }
-                //}
+
+                    // Check for match to "text" on the page bytes; only matching records are decoded
+                    if (!matcher.matches(page, sdtnameOffset)) {
+                        continue;
+                    }
+
+                    /*
+                     * Fixed Length Records (total size = 112 bytes):
+                     * SDT_NAME field = 24 bytes, offset = 0
+                     * id field = 4 bytes, offset = 24
+                     * date field = 8 bytes, offset = 28
+                     * year field = 4 bytes, offset = 36
+                     * month field = 9 bytes, offset = 40
+                     * mdate field = 4 bytes, offset = 49
+                     * day field = 9 bytes, offset = 53
+                     * time field = 4 bytes, offset = 62
+                     * sensorid field = 4 bytes, offset = 66
+                     * sensorname field = 38 bytes, offset = 70
+                     * counts field = 4 bytes, offset = 108
+                     *
+                     * These are the offsets within a row page; layout.offset maps them to
+                     * the record's position in either kind of page. Numeric fields are
+                     * read directly from "page"
+                     */
+                    page.get(sdtnameOffset, sdtnameBytes);
+                    page.get(layout.offset(i, constants.MONTH_OFFSET, constants.MONTH_SIZE), monthBytes);
+                    page.get(layout.offset(i, constants.DAY_OFFSET, constants.DAY_SIZE), dayBytes);
+                    page.get(layout.offset(i, constants.SENSORNAME_OFFSET, constants.SENSORNAME_SIZE), sensorNameBytes);
+
+                    // Convert long data into Date object
+                    Date date = new Date(page.getLong(layout.offset(i, constants.DATE_OFFSET, constants.DATE_SIZE)));
+
+                    // Get a string representation of the record for printing to stdout
+                    String record = new String(sdtnameBytes).trim() + ","
+                            + page.getInt(layout.offset(i, constants.ID_OFFSET, constants.ID_SIZE))
+                            + "," + dateFormat.format(date) + ","
+                            + page.getInt(layout.offset(i, constants.YEAR_OFFSET, constants.YEAR_SIZE)) +
+                            "," + new String(monthBytes).trim() + ","
+                            + page.getInt(layout.offset(i, constants.MDATE_OFFSET, constants.MDATE_SIZE))
+                            + "," + new String(dayBytes).trim() + ","
+                            + page.getInt(layout.offset(i, constants.TIME_OFFSET, constants.TIME_SIZE))
+                            + "," + page.getInt(layout.offset(i, constants.SENSORID_OFFSET, constants.SENSORID_SIZE))
+                            + "," + new String(sensorNameBytes).trim() + ","
+                            + page.getInt(layout.offset(i, constants.COUNTS_OFFSET, constants.COUNTS_SIZE));
+                    System.out.println(record);
+                }
+                heap.unpinPage(pageId);
             }
 
             finishTime = System.nanoTime();
@@ -118,12 +175,20 @@ public class dbquery {
         }
         finally {
 
-            if (inStream != null) {
-                inStream.close();
+            if (heap != null) {
+                heap.close();
             }
         }
 
         long timeInMilliseconds = (finishTime - startTime)/constants.MILLISECONDS_PER_SECOND;
         System.out.println("Time taken: " + timeInMilliseconds + " ms");
     }
+
+    // A -range bound: a date in the csv's format for the date field, an integer otherwise
+    private static long parseBound(String bound, int column, SimpleDateFormat dateFormat) throws ParseException {
+        if (column == ZoneMap.DATE_COLUMN) {
+            return dateFormat.parse(bound).getTime();
+        }
+        return Long.parseLong(bound);
+    }
 }